@@ -0,0 +1,138 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.Furnace;
+import org.bukkit.inventory.FurnaceRecipe;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.Recipe;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+
+
+/**
+ * FurnaceInternals using only the Bukkit API, for servers whose internals
+ * NmsFurnaceInternals can't find. Slower: switching a furnace between lit
+ * and unlit replaces the block and copies its contents over, and the
+ * furnace recipes are read into tables, again whenever they change.
+ */
+class BukkitFurnaceInternals implements FurnaceInternals {
+
+    // Furnace recipe results by input; null until needed. Never changed
+    // once built, only replaced, so a reader always sees a whole table.
+    private volatile EnumMap<Material, ItemStack> results = null;
+    // Raw materials by result; as above.
+    private volatile EnumMap<Material, Material> raws = null;
+
+    public void setBurning(Block furnace, boolean burning) {
+        Material type = burning ? Material.BURNING_FURNACE : Material.FURNACE;
+        if (furnace.getType() == type) {
+            return;
+        }
+
+        // Changing the block drops the old furnace's contents; take them
+        // out first, and put them into the new furnace.
+        Furnace state = (Furnace) furnace.getState();
+        ItemStack[] contents = state.getInventory().getContents();
+        short burnTime = state.getBurnTime();
+        short cookTime = state.getCookTime();
+        state.getInventory().clear();
+
+        furnace.setTypeIdAndData(type.getId(), furnace.getData(), true);
+
+        state = (Furnace) furnace.getState();
+        state.getInventory().setContents(contents);
+        state.setBurnTime(burnTime);
+        state.setCookTime(cookTime);
+    }
+
+    public boolean canCook(Material raw) {
+        return getResults().containsKey(raw);
+    }
+
+    public Material resultType(Material raw) {
+        ItemStack result = getResults().get(raw);
+        return (result != null) ? result.getType() : null;
+    }
+
+    public ItemStack result(Material raw) {
+        ItemStack result = getResults().get(raw);
+        return (result != null) ? result.clone() : null;
+    }
+
+    public Material rawOf(Material result) {
+        EnumMap<Material, Material> table = raws;
+        if (table == null) {
+            table = new EnumMap<Material, Material>(Material.class);
+            readRecipes(null, table);
+            raws = table;
+        }
+        return table.get(result);
+    }
+
+    public void recipesChanged() {
+        results = null;
+        raws = null;
+    }
+
+    private EnumMap<Material, ItemStack> getResults() {
+        EnumMap<Material, ItemStack> table = results;
+        if (table == null) {
+            table = new EnumMap<Material, ItemStack>(Material.class);
+            readRecipes(table, null);
+            results = table;
+        }
+        return table;
+    }
+
+    /**
+     * Read the server's furnace recipes into either table, or both. Reading
+     * them makes a copy of every recipe, so keep the tables.
+     * @param results - results by raw material. Can be null.
+     * @param raws - raw materials by result. Can be null.
+     */
+    static void readRecipes(EnumMap<Material, ItemStack> results, EnumMap<Material, Material> raws) {
+        Iterator<Recipe> iter = Bukkit.recipeIterator();
+        while (iter.hasNext()) {
+            Recipe rec = iter.next();
+            if (!(rec instanceof FurnaceRecipe)) {
+                continue;
+            }
+            Material raw = ((FurnaceRecipe) rec).getInput().getType();
+            ItemStack result = rec.getResult();
+            if (results != null) {
+                // Later recipes replace earlier ones, as in the server.
+                results.put(raw, result);
+            }
+            if (raws != null && !raws.containsKey(result.getType())) {
+                // The first recipe for a result wins, as it always has.
+                raws.put(result.getType(), raw);
+            }
+        }
+    }
+}
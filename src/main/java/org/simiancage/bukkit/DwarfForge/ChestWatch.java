@@ -0,0 +1,92 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Forges asleep until a chest changes. A sleeping forge has no scheduled
+ * update at all; the inventory listener wakes it when the chest it waits
+ * on is closed, or a hopper moves items the right way: into the chest for
+ * forges waiting on input, out of it for forges blocked on output.
+ */
+class ChestWatch {
+
+    // Forges waiting for their input chest to be refilled.
+    static final ChestWatch REFILL = new ChestWatch();
+
+    // Forges blocked on a full output chest, waiting for it to drain.
+    static final ChestWatch DRAIN = new ChestWatch();
+
+    private final HashMap<Location, ArrayList<Forge>> watchers = new HashMap<Location, ArrayList<Forge>>();
+
+    private ChestWatch() {
+    }
+
+    void watch(Location chest, Forge forge) {
+        ArrayList<Forge> forges = watchers.get(chest);
+        if (forges == null) {
+            forges = new ArrayList<Forge>(1);
+            watchers.put(chest, forges);
+        }
+        if (!forges.contains(forge)) {
+            forges.add(forge);
+        }
+    }
+
+    void unwatch(Location chest, Forge forge) {
+        ArrayList<Forge> forges = watchers.get(chest);
+        if (forges != null) {
+            forges.remove(forge);
+            if (forges.isEmpty()) {
+                watchers.remove(chest);
+            }
+        }
+    }
+
+    // Wake every forge waiting on the chest.
+    void wake(Location chest) {
+        if (watchers.isEmpty()) {
+            return;
+        }
+        ArrayList<Forge> forges = watchers.remove(chest);
+        if (forges != null) {
+            for (Forge forge : forges) {
+                forge.wake();
+            }
+        }
+    }
+
+    int getSleeping() {
+        int count = 0;
+        for (ArrayList<Forge> forges : watchers.values()) {
+            count += forges.size();
+        }
+        return count;
+    }
+}
@@ -8,6 +8,7 @@ package org.simiancage.bukkit.DwarfForge; /**
  *
  */
 
+import org.bukkit.Material;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginDescriptionFile;
@@ -114,11 +115,11 @@ public class Config {
     /**
      * This is the internal config version
      */
-    private final String configCurrent = "2.0";
+    private final String configCurrent = "2.1";
     /**
      * This is the DEFAULT for the config file version, should be the same as configCurrent. Will afterwards be changed
      */
-    private String configVer = "2.0";
+    private String configVer = "2.1";
 
 
 // and now the real stuff
@@ -129,6 +130,11 @@ public class Config {
     private final static String KEY_COOK_TIME = "cooking-time";
     private final static double MAX_COOK_TIME = 9.25;
     private static double cookTime;
+    // Ticks a furnace counts up to for each item it smelts.
+    private final static int FURNACE_COOK_TICKS = 200;
+    // Longest cook-ticks for a recipe. The furnace counts the elapsed time
+    // in a short, from below zero for recipes slower than vanilla.
+    final static int MAX_COOK_TICKS = FURNACE_COOK_TICKS - Short.MIN_VALUE;
 
     private final static String KEY_REQUIRE_FUEL = "require-fuel";
     private static boolean requireFuel;
@@ -142,6 +148,58 @@ public class Config {
     private final static String KEY_MAX_STACK_VERTICAL = "stack-limit-vertical";
     private static int maxStackVertical;
 
+    private final static String KEY_VIRTUAL_FORGE = "virtual-forge";
+    private static boolean virtualForge;
+
+    private final static String KEY_VIRTUAL_RATE = "virtual-items-per-second";
+    private final static double DEFAULT_VIRTUAL_RATE = 2.0;
+    private static double virtualRate;
+
+    private final static String KEY_VIRTUAL_CYCLE = "virtual-cycle";
+    private final static int DEFAULT_VIRTUAL_CYCLE = 10;
+    private static int virtualCycle;
+
+    private final static String KEY_UPDATES_PER_TICK = "updates-per-tick";
+    private final static int DEFAULT_UPDATES_PER_TICK = 50;
+    private static int updatesPerTick;
+
+    private final static String KEY_PLANNER_THREADS = "planner-threads";
+    private static int plannerThreads;
+
+    private final static String KEY_STORAGE_POOL_CHESTS = "storage-pool-chests";
+    private static int storagePoolChests;
+
+    private final static String KEY_LAG_TICK_MILLIS = "lag-tick-ms";
+    private final static double DEFAULT_LAG_TICK_MILLIS = 60;
+    private static double lagTickMillis;
+
+    private final static String KEY_LAG_FORGE_MILLIS = "lag-forge-ms";
+    private final static double DEFAULT_LAG_FORGE_MILLIS = 5;
+    private static double lagForgeMillis;
+
+    private final static String KEY_TOGGLE_COOLDOWN = "toggle-cooldown-ms";
+    private final static int DEFAULT_TOGGLE_COOLDOWN = 500;
+    private static int toggleCooldown;
+
+    private final static String KEY_RECIPES = "recipes";
+
+    private final static String KEY_MAX_FORGES_PER_CHUNK = "max-forges-per-chunk";
+    private static int maxForgesPerChunk;
+
+    private final static String KEY_MAX_FORGES_PER_WORLD = "max-forges-per-world";
+    private static int maxForgesPerWorld;
+
+    private final static String KEY_MAX_FORGES_PER_PLAYER = "max-forges-per-player";
+    private static int maxForgesPerPlayer;
+
+    private final static String KEY_PLAYER_TOGGLE_COOLDOWN = "player-toggle-cooldown-ms";
+    private final static int DEFAULT_PLAYER_TOGGLE_COOLDOWN = 100;
+    private static int playerToggleCooldown;
+
+    private final static String KEY_SWEEP_PER_TICK = "sweep-per-tick";
+    private final static int DEFAULT_SWEEP_PER_TICK = 5;
+    private static int sweepPerTick;
+
 // *******************************************************************************************************************
 
 
@@ -163,6 +221,20 @@ afterwards parsable again from the configuration class of bukkit
         allowCraftedFuel = false;
         maxStackHorizontal = 1;
         maxStackVertical = 3;
+        virtualForge = false;
+        virtualRate = DEFAULT_VIRTUAL_RATE;
+        virtualCycle = DEFAULT_VIRTUAL_CYCLE;
+        updatesPerTick = DEFAULT_UPDATES_PER_TICK;
+        plannerThreads = 0;
+        storagePoolChests = 1;
+        lagTickMillis = DEFAULT_LAG_TICK_MILLIS;
+        lagForgeMillis = DEFAULT_LAG_FORGE_MILLIS;
+        toggleCooldown = DEFAULT_TOGGLE_COOLDOWN;
+        playerToggleCooldown = DEFAULT_PLAYER_TOGGLE_COOLDOWN;
+        maxForgesPerChunk = 0;
+        maxForgesPerWorld = 0;
+        maxForgesPerPlayer = 0;
+        sweepPerTick = DEFAULT_SWEEP_PER_TICK;
 
     }
 
@@ -179,6 +251,20 @@ afterwards parsable again from the configuration class of bukkit
         config.addDefault(KEY_ALLOW_CRAFTED_FUEL, allowCraftedFuel);
         config.addDefault(KEY_MAX_STACK_HORIZONTAL, maxStackHorizontal);
         config.addDefault(KEY_MAX_STACK_VERTICAL, maxStackVertical);
+        config.addDefault(KEY_VIRTUAL_FORGE, virtualForge);
+        config.addDefault(KEY_VIRTUAL_RATE, virtualRate);
+        config.addDefault(KEY_VIRTUAL_CYCLE, virtualCycle);
+        config.addDefault(KEY_UPDATES_PER_TICK, updatesPerTick);
+        config.addDefault(KEY_PLANNER_THREADS, plannerThreads);
+        config.addDefault(KEY_STORAGE_POOL_CHESTS, storagePoolChests);
+        config.addDefault(KEY_LAG_TICK_MILLIS, lagTickMillis);
+        config.addDefault(KEY_LAG_FORGE_MILLIS, lagForgeMillis);
+        config.addDefault(KEY_TOGGLE_COOLDOWN, toggleCooldown);
+        config.addDefault(KEY_PLAYER_TOGGLE_COOLDOWN, playerToggleCooldown);
+        config.addDefault(KEY_MAX_FORGES_PER_CHUNK, maxForgesPerChunk);
+        config.addDefault(KEY_MAX_FORGES_PER_WORLD, maxForgesPerWorld);
+        config.addDefault(KEY_MAX_FORGES_PER_PLAYER, maxForgesPerPlayer);
+        config.addDefault(KEY_SWEEP_PER_TICK, sweepPerTick);
     }
 
 
@@ -195,12 +281,41 @@ afterwards parsable again from the configuration class of bukkit
         allowCraftedFuel = config.getBoolean(KEY_ALLOW_CRAFTED_FUEL);
         maxStackHorizontal = config.getInt(KEY_MAX_STACK_HORIZONTAL);
         maxStackVertical = config.getInt(KEY_MAX_STACK_VERTICAL);
+        virtualForge = config.getBoolean(KEY_VIRTUAL_FORGE, false);
+        virtualRate = config.getDouble(KEY_VIRTUAL_RATE, DEFAULT_VIRTUAL_RATE);
+        virtualCycle = config.getInt(KEY_VIRTUAL_CYCLE, DEFAULT_VIRTUAL_CYCLE);
+        updatesPerTick = config.getInt(KEY_UPDATES_PER_TICK, DEFAULT_UPDATES_PER_TICK);
+        plannerThreads = config.getInt(KEY_PLANNER_THREADS, 0);
+        storagePoolChests = config.getInt(KEY_STORAGE_POOL_CHESTS, 1);
+        lagTickMillis = config.getDouble(KEY_LAG_TICK_MILLIS, DEFAULT_LAG_TICK_MILLIS);
+        lagForgeMillis = config.getDouble(KEY_LAG_FORGE_MILLIS, DEFAULT_LAG_FORGE_MILLIS);
+        toggleCooldown = config.getInt(KEY_TOGGLE_COOLDOWN, DEFAULT_TOGGLE_COOLDOWN);
+        playerToggleCooldown = config.getInt(KEY_PLAYER_TOGGLE_COOLDOWN, DEFAULT_PLAYER_TOGGLE_COOLDOWN);
+        maxForgesPerChunk = config.getInt(KEY_MAX_FORGES_PER_CHUNK, 0);
+        maxForgesPerWorld = config.getInt(KEY_MAX_FORGES_PER_WORLD, 0);
+        maxForgesPerPlayer = config.getInt(KEY_MAX_FORGES_PER_PLAYER, 0);
+        sweepPerTick = config.getInt(KEY_SWEEP_PER_TICK, DEFAULT_SWEEP_PER_TICK);
+        ForgeRecipes.load(config.getConfigurationSection(KEY_RECIPES));
 
         log.debug(KEY_COOK_TIME, cookTime);
         log.debug(KEY_REQUIRE_FUEL, requireFuel);
         log.debug(KEY_ALLOW_CRAFTED_FUEL, allowCraftedFuel);
         log.debug(KEY_MAX_STACK_HORIZONTAL, maxStackHorizontal);
         log.debug(KEY_MAX_STACK_VERTICAL, maxStackVertical);
+        log.debug(KEY_VIRTUAL_FORGE, virtualForge);
+        log.debug(KEY_VIRTUAL_RATE, virtualRate);
+        log.debug(KEY_VIRTUAL_CYCLE, virtualCycle);
+        log.debug(KEY_UPDATES_PER_TICK, updatesPerTick);
+        log.debug(KEY_PLANNER_THREADS, plannerThreads);
+        log.debug(KEY_STORAGE_POOL_CHESTS, storagePoolChests);
+        log.debug(KEY_LAG_TICK_MILLIS, lagTickMillis);
+        log.debug(KEY_LAG_FORGE_MILLIS, lagForgeMillis);
+        log.debug(KEY_TOGGLE_COOLDOWN, toggleCooldown);
+        log.debug(KEY_PLAYER_TOGGLE_COOLDOWN, playerToggleCooldown);
+        log.debug(KEY_MAX_FORGES_PER_CHUNK, maxForgesPerChunk);
+        log.debug(KEY_MAX_FORGES_PER_WORLD, maxForgesPerWorld);
+        log.debug(KEY_MAX_FORGES_PER_PLAYER, maxForgesPerPlayer);
+        log.debug(KEY_SWEEP_PER_TICK, sweepPerTick);
 
         // Some limits...
         if (maxStackVertical < 0) {
@@ -220,6 +335,58 @@ afterwards parsable again from the configuration class of bukkit
             log.error(KEY_COOK_TIME + " is to high! Setting to " + MAX_COOK_TIME);
             cookTime = MAX_COOK_TIME;
         }
+        if (virtualRate <= 0) {
+            log.error(KEY_VIRTUAL_RATE + " must be positive, setting to " + DEFAULT_VIRTUAL_RATE);
+            virtualRate = DEFAULT_VIRTUAL_RATE;
+        }
+        if (virtualCycle < 1) {
+            log.error(KEY_VIRTUAL_CYCLE + " is to low! Setting to 1");
+            virtualCycle = 1;
+        }
+        if (updatesPerTick < 1) {
+            log.error(KEY_UPDATES_PER_TICK + " is to low! Setting to 1");
+            updatesPerTick = 1;
+        }
+        if (plannerThreads < 0) {
+            log.error("Negative " + KEY_PLANNER_THREADS + ", setting to ZERO!");
+            plannerThreads = 0;
+        }
+        if (storagePoolChests < 1) {
+            log.error(KEY_STORAGE_POOL_CHESTS + " is to low! Setting to 1");
+            storagePoolChests = 1;
+        }
+        if (lagTickMillis < 0) {
+            log.error("Negative " + KEY_LAG_TICK_MILLIS + ", setting to ZERO!");
+            lagTickMillis = 0;
+        }
+        if (lagForgeMillis < 0) {
+            log.error("Negative " + KEY_LAG_FORGE_MILLIS + ", setting to ZERO!");
+            lagForgeMillis = 0;
+        }
+        if (toggleCooldown < 0) {
+            log.error("Negative " + KEY_TOGGLE_COOLDOWN + ", setting to ZERO!");
+            toggleCooldown = 0;
+        }
+        if (playerToggleCooldown < 0) {
+            log.error("Negative " + KEY_PLAYER_TOGGLE_COOLDOWN + ", setting to ZERO!");
+            playerToggleCooldown = 0;
+        }
+        if (maxForgesPerChunk < 0) {
+            log.error("Negative " + KEY_MAX_FORGES_PER_CHUNK + ", setting to ZERO!");
+            maxForgesPerChunk = 0;
+        }
+        if (maxForgesPerWorld < 0) {
+            log.error("Negative " + KEY_MAX_FORGES_PER_WORLD + ", setting to ZERO!");
+            maxForgesPerWorld = 0;
+        }
+        if (maxForgesPerPlayer < 0) {
+            log.error("Negative " + KEY_MAX_FORGES_PER_PLAYER + ", setting to ZERO!");
+            maxForgesPerPlayer = 0;
+        }
+        if (sweepPerTick < 0) {
+            log.error("Negative " + KEY_SWEEP_PER_TICK + ", setting to ZERO!");
+            sweepPerTick = 0;
+        }
 
 
     }
@@ -258,6 +425,64 @@ afterwards parsable again from the configuration class of bukkit
         stream.println("# How far above the lava (through other forges) a furnace may be and still be considered a forge.");
         stream.println("# Set to zero for unlimited.");
         stream.println(KEY_MAX_STACK_VERTICAL + ": " + maxStackVertical);
+        stream.println();
+        stream.println("# Set to true to run forges as \"virtual forges\": items are smelted in bulk straight from the");
+        stream.println("# input chest into the output chest, and the furnace itself is only lit for show.");
+        stream.println(KEY_VIRTUAL_FORGE + ": " + virtualForge);
+        stream.println();
+        stream.println("# How many items per second a virtual forge smelts.");
+        stream.println(KEY_VIRTUAL_RATE + ": " + virtualRate);
+        stream.println();
+        stream.println("# How often, in seconds, a virtual forge moves its items. Larger values move bigger batches less often.");
+        stream.println(KEY_VIRTUAL_CYCLE + ": " + virtualCycle);
+        stream.println();
+        stream.println("# Forges are updated per region (512x512 blocks). This is the most forge updates a region runs");
+        stream.println("# in one server tick; the rest wait for the next tick.");
+        stream.println(KEY_UPDATES_PER_TICK + ": " + updatesPerTick);
+        stream.println();
+        stream.println("# Number of background threads that work out what active forges should load and unload.");
+        stream.println("# Set to zero to do all the work on the main thread.");
+        stream.println(KEY_PLANNER_THREADS + ": " + plannerThreads);
+        stream.println();
+        stream.println("# How many chests a forge's input or output may span: the chest next to the forge, plus chests");
+        stream.println("# stacked on top of it. A double chest counts as one. Set to 1 to use only the adjacent chest.");
+        stream.println(KEY_STORAGE_POOL_CHESTS + ": " + storagePoolChests);
+        stream.println();
+        stream.println("# When the server's average tick takes longer than this many milliseconds (50 is full speed),");
+        stream.println("# forges update less often until the server recovers. Set to zero to ignore the tick length.");
+        stream.println(KEY_LAG_TICK_MILLIS + ": " + lagTickMillis);
+        stream.println();
+        stream.println("# The same, for the milliseconds DwarfForge itself spends on forges per tick.");
+        stream.println(KEY_LAG_FORGE_MILLIS + ": " + lagForgeMillis);
+        stream.println();
+        stream.println("# Milliseconds after a forge is toggled before it can be toggled again. Quicker hits are ignored.");
+        stream.println(KEY_TOGGLE_COOLDOWN + ": " + toggleCooldown);
+        stream.println();
+        stream.println("# Milliseconds after a player toggles any forge before they can toggle another one.");
+        stream.println(KEY_PLAYER_TOGGLE_COOLDOWN + ": " + playerToggleCooldown);
+        stream.println();
+        stream.println("# The most forges that may be active in one chunk, one world, and for one player. Forges over");
+        stream.println("# a limit wait in line and light up, in fair turns between players, as others go out.");
+        stream.println("# Set to zero for unlimited.");
+        stream.println(KEY_MAX_FORGES_PER_CHUNK + ": " + maxForgesPerChunk);
+        stream.println(KEY_MAX_FORGES_PER_WORLD + ": " + maxForgesPerWorld);
+        stream.println(KEY_MAX_FORGES_PER_PLAYER + ": " + maxForgesPerPlayer);
+        stream.println();
+        stream.println("# How many active forges to check against the world each tick. Forges whose blocks were changed");
+        stream.println("# behind DwarfForge's back (WorldEdit, other plugins) are shut down. Set to zero to turn it off.");
+        stream.println(KEY_SWEEP_PER_TICK + ": " + sweepPerTick);
+        stream.println();
+        stream.println("# Forge recipes, by input material. Each may set the result and its amount (replacing any");
+        stream.println("# vanilla recipe) and the cook time in ticks (20 ticks per second), instead of " + KEY_COOK_TIME + ".");
+        stream.println("# Vanilla furnaces take 200 ticks; cook-ticks may be anything from 1 to " + MAX_COOK_TICKS + ".");
+        stream.println("# For example:");
+        stream.println("#   IRON_ORE:");
+        stream.println("#       cook-ticks: 60");
+        stream.println("#   COBBLESTONE:");
+        stream.println("#       result: STONE");
+        stream.println("#       amount: 1");
+        stream.println("#       cook-ticks: 20");
+        ForgeRecipes.write(stream, KEY_RECIPES);
 
     }
 
@@ -289,12 +514,84 @@ afterwards parsable again from the configuration class of bukkit
         return maxStackVertical;
     }
 
+    public static boolean isVirtualForge() {
+        return virtualForge;
+    }
+
+    public static double getVirtualRate() {
+        return virtualRate;
+    }
+
+    public static int getVirtualCycle() {
+        return virtualCycle;
+    }
+
+    public static int getUpdatesPerTick() {
+        return updatesPerTick;
+    }
+
+    public static int getPlannerThreads() {
+        return plannerThreads;
+    }
+
+    public static int getStoragePoolChests() {
+        return storagePoolChests;
+    }
+
+    public static double getLagTickMillis() {
+        return lagTickMillis;
+    }
+
+    public static double getLagForgeMillis() {
+        return lagForgeMillis;
+    }
+
+    public static int getToggleCooldown() {
+        return toggleCooldown;
+    }
+
+    public static int getPlayerToggleCooldown() {
+        return playerToggleCooldown;
+    }
+
+    public static int getMaxForgesPerChunk() {
+        return maxForgesPerChunk;
+    }
+
+    public static int getMaxForgesPerWorld() {
+        return maxForgesPerWorld;
+    }
+
+    public static int getMaxForgesPerPlayer() {
+        return maxForgesPerPlayer;
+    }
+
+    public static int getSweepPerTick() {
+        return sweepPerTick;
+    }
+
     public static short cookTime() {
         // Furnace.setCookTime sets time elapsed, NOT time remaining.
         // The config file specifies time remaining, so adjust here.
         return (short) (Utils.SECS * (MAX_COOK_TIME - cookTime));
     }
 
+    // The same, for the given raw material's recipe. Below zero for recipes
+    // slower than vanilla, so the furnace counts up for longer.
+    public static short cookTime(Material raw) {
+        int ticks = ForgeRecipes.getCookTicks(raw);
+        if (ticks == ForgeRecipes.NONE) {
+            return cookTime();
+        }
+        return (short) (FURNACE_COOK_TICKS - ticks);
+    }
+
+    // Ticks the furnace takes to smelt one of the given raw material, once
+    // cookTime(raw) is set; at least 1.
+    public static int cookTicks(Material raw) {
+        return FURNACE_COOK_TICKS - cookTime(raw);
+    }
+
 
 // Last change coming up... choosing the right ClassName for the Logger..
 
@@ -28,20 +28,33 @@ import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.*;
 import org.bukkit.event.block.BlockIgniteEvent.IgniteCause;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.HashMap;
 
 
 class DFBlockListener implements DwarfForge.Listener, Listener {
     private DwarfForge main;
 
+    // When each player last toggled a forge.
+    private HashMap<String, Long> lastToggle = new HashMap<String, Long>();
+
     public void onEnable(DwarfForge main) {
         this.main = main;
-        main.getServer().getPluginManager().registerEvents(this, main);
+        main.registerEvents(this);
     }
 
     public void onDisable() {
+        lastToggle.clear();
+    }
+
+    private static boolean isFurnace(Block block) {
+        Material type = block.getType();
+        return type == Material.FURNACE || type == Material.BURNING_FURNACE;
     }
 
     @EventHandler
@@ -68,7 +81,7 @@ class DFBlockListener implements DwarfForge.Listener, Listener {
 
         // Does the player have permission?
         Player player = event.getPlayer();
-        if (!player.hasPermission("dwarfforge.create")) {
+        if (!PermissionCache.hasPermission(player, "dwarfforge.create")) {
             // No: cancel the event.
             event.setCancelled(true);
             player.sendMessage("Ye have not the strength of the Dwarfs to create such a forge.");
@@ -83,14 +96,15 @@ class DFBlockListener implements DwarfForge.Listener, Listener {
         }
 
         // If the player was not attempting to destroy a Dwarf Forge, ignore the event.
+        // Check the block type first; it's cheap and rules out nearly everything.
         Block block = event.getBlock();
-        if (!Forge.isValid(block)) {
+        if (!isFurnace(block) || !Forge.isValid(block)) {
             return;
         }
 
         // Does the player have permission?
         Player player = event.getPlayer();
-        if (!player.hasPermission("dwarfforge.destroy")) {
+        if (!PermissionCache.hasPermission(player, "dwarfforge.destroy")) {
             // NO: cancel the event.
             event.setCancelled(true);
             player.sendMessage("Ye have not the might of the Dwarfs to destroy such a forge.");
@@ -105,26 +119,36 @@ class DFBlockListener implements DwarfForge.Listener, Listener {
         }
 
         // Do nothing if the furnace isn't a Dwarf Forge.
+        // Check the block type first; it's cheap and rules out nearly everything.
         Block block = event.getBlock();
-        if (!Forge.isValid(block)) {
+        if (!isFurnace(block) || !Forge.isValid(block)) {
             return;
         }
 
         // Do nothing if the player hasn't permission to use the forge.
         // Note that we do NOT cancel the event; only this plugin does no further work.
         Player player = event.getPlayer();
-        if (!player.hasPermission("dwarfforge.use")) {
+        if (!PermissionCache.hasPermission(player, "dwarfforge.use")) {
             player.sendMessage("Ye have not the will of the Dwarfs to use such a forge.");
             return;
         }
 
+        // Debounce: left-click spam shouldn't turn into a toggle storm.
+        long now = System.currentTimeMillis();
+        Long last = lastToggle.get(player.getName());
+        if (last != null && now - last < Config.getPlayerToggleCooldown()) {
+            return;
+        }
+
         // Queue up task to toggle the forge.
-        final Forge forge = Forge.find(block);
-        main.queueTask(new Runnable() {
-            public void run() {
-                forge.toggle();
-            }
-        });
+        if (Forge.find(block).requestToggle(player.getName())) {
+            lastToggle.put(player.getName(), now);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        lastToggle.remove(event.getPlayer().getName());
     }
 
     @EventHandler
@@ -0,0 +1,219 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+
+class DFCommand implements DwarfForge.Listener, CommandExecutor {
+    private static final int INSPECT_DISTANCE = 8;
+    private static final int PROFILE_TOP = 10;
+
+    private DwarfForge main;
+
+    public void onEnable(DwarfForge main) {
+        this.main = main;
+        main.getCommand("dwarfforge").setExecutor(this);
+    }
+
+    public void onDisable() {
+    }
+
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 0) {
+            return false;
+        }
+
+        String sub = args[0].toLowerCase();
+        if (sub.equals("stats")) {
+            if (args.length > 1 && args[1].equalsIgnoreCase("reset")) {
+                ForgeStats.reset();
+                sender.sendMessage("DwarfForge statistics reset.");
+            } else {
+                stats(sender);
+            }
+            return true;
+        } else if (sub.equals("inspect")) {
+            inspect(sender);
+            return true;
+        } else if (sub.equals("profile") && args.length > 1) {
+            profile(sender, args[1]);
+            return true;
+        } else if (sub.equals("export")) {
+            export(sender, (args.length > 1) ? args[1] : "csv");
+            return true;
+        }
+        return false;
+    }
+
+    private void export(final CommandSender sender, String type) {
+        ForgeExport.Format format;
+        if (type.equalsIgnoreCase("csv")) {
+            format = ForgeExport.Format.CSV;
+        } else if (type.equalsIgnoreCase("json")) {
+            format = ForgeExport.Format.JSON;
+        } else {
+            sender.sendMessage("Export format must be csv or json.");
+            return;
+        }
+
+        String name = "export-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+                + ((format == ForgeExport.Format.CSV) ? ".csv" : ".jsonl");
+        final ForgeExport[] export = new ForgeExport[1];
+        try {
+            export[0] = main.exportForges(name, format, new Runnable() {
+                public void run() {
+                    sender.sendMessage("Exported " + export[0].getCount() + " forges to "
+                            + export[0].getFile().getName() + ".");
+                }
+            });
+        } catch (IOException e) {
+            sender.sendMessage("Could not export forges: " + e.getMessage());
+            return;
+        }
+        sender.sendMessage("Exporting forges to " + name + "...");
+    }
+
+    private void stats(CommandSender sender) {
+        sender.sendMessage("DwarfForge: " + Forge.active.size() + " active forges.");
+        for (World world : main.getServer().getWorlds()) {
+            int count = 0;
+            int unloaded = 0;
+            for (Forge forge : Forge.active.values()) {
+                if (forge.getLocation().getWorld() == world) {
+                    count += 1;
+                    if (forge.isUnloaded()) {
+                        unloaded += 1;
+                    }
+                }
+            }
+            if (count > 0) {
+                sender.sendMessage("  " + world.getName() + ": " + count + " active, "
+                        + unloaded + " in unloaded chunks");
+            }
+        }
+        int scheduled = 0;
+        for (ForgeScheduler.Partition partition : main.getForgeScheduler().getPartitions()) {
+            scheduled += partition.getScheduled();
+        }
+        sender.sendMessage("Scheduled: " + scheduled + " forges in "
+                + main.getForgeScheduler().getPartitions().size() + " regions, "
+                + ChestWatch.REFILL.getSleeping() + " waiting for input, "
+                + ChestWatch.DRAIN.getSleeping() + " blocked on output");
+        sender.sendMessage("Waiting: " + ForgeQuota.getWaiting() + " forges of "
+                + ForgeQuota.getWaitingOwners() + " players over quota");
+        sender.sendMessage("Furnace writes: " + FurnaceWriter.getWritten() + ", "
+                + FurnaceWriter.getSkipped() + " skipped as unchanged");
+        sender.sendMessage("Sweep: " + ForgeSweeper.getPruned() + " invalid forges shut down, "
+                + ForgeSweeper.getRestarted() + " stalled forges restarted");
+        sender.sendMessage(String.format("Lag: tick %.1f ms, forges %.2f ms/tick, slowdown %dx",
+                LagWatchdog.getTickMillis(), LagWatchdog.getForgeMillis(), LagWatchdog.getSlowdown()));
+        sender.sendMessage(String.format("Updates: %d (%.2f/s), average %.3f ms, p99 %.3f ms",
+                ForgeStats.getUpdates(), ForgeStats.getUpdateRate(),
+                ForgeStats.getAverageMillis(), ForgeStats.getPercentileMillis(99)));
+    }
+
+    private void inspect(CommandSender sender) {
+        if (!(sender instanceof Player)) {
+            sender.sendMessage("Only players can inspect forges.");
+            return;
+        }
+
+        Block block = ((Player) sender).getTargetBlock(null, INSPECT_DISTANCE);
+        Forge forge = (block != null) ? Forge.find(block) : null;
+        if (forge == null) {
+            sender.sendMessage("That is no Dwarf Forge.");
+            return;
+        }
+
+        String state = forge.isWaiting() ? "waiting for quota" : "inactive";
+        if (forge.isActive()) {
+            state = forge.isUnloaded() ? "active (unloaded)"
+                    : (forge.isParked() ? "active (blocked on output)"
+                    : (forge.isSleeping() ? "active (waiting for input)" : "active"));
+        }
+        sender.sendMessage("Forge at " + format(forge.getLocation()) + ": " + state
+                + (forge.isBurning() ? ", burning" : ""));
+        sender.sendMessage("  Stack level: " + forge.getStackLevel()
+                + ", cluster size: " + (forge.getCluster() != null ? forge.getCluster().getMembers().size() : 1));
+        sender.sendMessage("  Input chest: " + format(forge.getInputChest()));
+        sender.sendMessage("  Output chest: " + format(forge.getOutputChest()));
+
+        long lastUpdate = forge.getLastUpdate();
+        sender.sendMessage("  Last update: " + (lastUpdate == 0 ? "never"
+                : ((System.currentTimeMillis() - lastUpdate) / 1000) + "s ago"));
+    }
+
+    private void profile(final CommandSender sender, String secondsArg) {
+        int seconds;
+        try {
+            seconds = Integer.parseInt(secondsArg);
+        } catch (NumberFormatException e) {
+            sender.sendMessage("Not a number of seconds: " + secondsArg);
+            return;
+        }
+        if (seconds <= 0) {
+            sender.sendMessage("Profile for at least one second.");
+            return;
+        }
+        if (ForgeStats.isProfiling()) {
+            sender.sendMessage("A profile is already running.");
+            return;
+        }
+
+        ForgeStats.startProfile();
+        sender.sendMessage("Profiling forges for " + seconds + "s...");
+        main.queueDelayedTask(seconds * Utils.SECS, new Runnable() {
+            public void run() {
+                List<Map.Entry<Location, long[]>> top = ForgeStats.stopProfile(PROFILE_TOP);
+                sender.sendMessage("Most expensive forges:");
+                for (Map.Entry<Location, long[]> entry : top) {
+                    long[] cost = entry.getValue();
+                    sender.sendMessage(String.format("  %s: %.3f ms in %d updates",
+                            format(entry.getKey()), cost[0] / 1e6, cost[1]));
+                }
+            }
+        });
+    }
+
+    private static String format(Block block) {
+        return (block != null) ? format(block.getLocation()) : "none";
+    }
+
+    private static String format(Location loc) {
+        return loc.getWorld().getName() + " " + loc.getBlockX() + "," + loc.getBlockY() + "," + loc.getBlockZ();
+    }
+}
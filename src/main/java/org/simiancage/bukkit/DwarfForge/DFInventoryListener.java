@@ -23,23 +23,33 @@
 package org.simiancage.bukkit.DwarfForge;
 
 
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.block.Chest;
+import org.bukkit.block.DoubleChest;
 import org.bukkit.block.Furnace;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.inventory.FurnaceBurnEvent;
 import org.bukkit.event.inventory.FurnaceSmeltEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryMoveItemEvent;
 import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 class DFInventoryListener implements DwarfForge.Listener, Listener {
     private DwarfForge main;
 
     public void onEnable(DwarfForge main) {
         this.main = main;
-        main.getServer().getPluginManager().registerEvents(this, main);
+        main.registerEvents(this);
         // Event registration
     }
 
@@ -128,5 +138,62 @@ class DFInventoryListener implements DwarfForge.Listener, Listener {
             }
         });
     }
-}
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onInventoryClose(InventoryCloseEvent event) {
+        // A player may have filled a forge's input chest; forges that were
+        // backing off for lack of input should look again soon.
+        for (Block chest : getChestBlocks(event.getInventory().getHolder())) {
+            ChestWatch.REFILL.wake(chest.getLocation());
+            ChestWatch.DRAIN.wake(chest.getLocation());
+            for (Location anchor : StoragePool.changed(chest)) {
+                ChestWatch.REFILL.wake(anchor);
+                ChestWatch.DRAIN.wake(anchor);
+            }
+            ForgeCluster cluster = ForgeCluster.find(chest);
+            if (cluster != null) {
+                for (Forge forge : cluster.getMembers()) {
+                    forge.resetBackoff();
+                }
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onInventoryMoveItem(InventoryMoveItemEvent event) {
+        // Monitoring event: do nothing if event was cancelled.
+        if (event.isCancelled()) {
+            return;
+        }
+
+        // Something (a hopper) is filling one chest and draining another;
+        // wake forges waiting on either.
+        for (Block chest : getChestBlocks(event.getDestination().getHolder())) {
+            ChestWatch.REFILL.wake(chest.getLocation());
+            for (Location anchor : StoragePool.changed(chest)) {
+                ChestWatch.REFILL.wake(anchor);
+            }
+        }
+        for (Block chest : getChestBlocks(event.getSource().getHolder())) {
+            ChestWatch.DRAIN.wake(chest.getLocation());
+            for (Location anchor : StoragePool.changed(chest)) {
+                ChestWatch.DRAIN.wake(anchor);
+            }
+        }
+    }
+
+    // The chest blocks behind an inventory: none, one, or both halves of a
+    // double chest.
+    static List<Block> getChestBlocks(InventoryHolder holder) {
+        if (holder instanceof Chest) {
+            return Collections.singletonList(((Chest) holder).getBlock());
+        } else if (holder instanceof DoubleChest) {
+            DoubleChest chest = (DoubleChest) holder;
+            List<Block> blocks = new ArrayList<Block>(2);
+            blocks.addAll(getChestBlocks(chest.getLeftSide()));
+            blocks.addAll(getChestBlocks(chest.getRightSide()));
+            return blocks;
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+class DFWorldListener implements DwarfForge.Listener, Listener {
+    private DwarfForge main;
+
+    public void onEnable(DwarfForge main) {
+        this.main = main;
+        main.registerEvents(this);
+    }
+
+    public void onDisable() {
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        // Monitoring event: do nothing if event was cancelled.
+        if (event.isCancelled()) {
+            return;
+        }
+
+        // Stop ticking forges nobody is around to see.
+        for (Forge forge : Forge.activeInChunk(event.getChunk())) {
+            forge.suspend();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        // Waiting forges may be in this chunk.
+        ForgeQuota.admitSoon();
+
+        List<Forge> forges = Forge.activeInChunk(event.getChunk());
+        if (forges.isEmpty()) {
+            return;
+        }
+
+        // Queue up a single task to catch up all forges in the chunk; the
+        // chunk is still being set up while this event is handled.
+        final List<Forge> resume = new ArrayList<Forge>(forges);
+        main.queueTask(new Runnable() {
+            public void run() {
+                for (Forge forge : resume) {
+                    forge.resume();
+                }
+            }
+        });
+    }
+}
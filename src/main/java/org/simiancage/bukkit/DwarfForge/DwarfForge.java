@@ -24,10 +24,15 @@ package org.simiancage.bukkit.DwarfForge;
 
 
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.*;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 
@@ -36,6 +41,8 @@ public class DwarfForge extends JavaPlugin {
     private Log log;
     private Config config;
     private FileConfiguration configuration;
+    private ForgeScheduler scheduler;
+    private ArrayList<ForgeExport> exports = new ArrayList<ForgeExport>();
 
     interface Listener {
         void onEnable(DwarfForge main);
@@ -45,7 +52,16 @@ public class DwarfForge extends JavaPlugin {
 
     private Listener[] listeners = {
             new DFBlockListener(),
-            new DFInventoryListener()
+            new DFInventoryListener(),
+            new DFWorldListener(),
+            new PermissionCache(),
+            new DFCommand(),
+            new TransferPlanner(),
+            new LagWatchdog(),
+            new ForgeSweeper(),
+            new ForgeEvents(),
+            new ForgeIndex(),
+            new FurnaceWriter()
     };
 
     static DwarfForge main;
@@ -55,9 +71,11 @@ public class DwarfForge extends JavaPlugin {
         main = this;
 
         log = Log.getInstance(main);
+        Utils.bindInternals(log);
         config = Config.getInstance();
         config.setupConfig(configuration, main);
-
+        scheduler = new ForgeScheduler(new ForgeScheduler.BukkitDriver(this));
+        scheduler.start();
 
         restoreActiveForges(Forge.active);
         for (Listener listener : listeners) {
@@ -72,8 +90,11 @@ public class DwarfForge extends JavaPlugin {
         for (Listener listener : listeners) {
             listener.onDisable();
         }
+        for (ForgeExport export : new ArrayList<ForgeExport>(exports)) {
+            export.cancel();
+        }
         saveActiveForges(Forge.active);
-
+        scheduler.stop();
 
         main = null;
 
@@ -104,10 +125,55 @@ public class DwarfForge extends JavaPlugin {
         getServer().getScheduler().cancelTask(id);
     }
 
+    ForgeScheduler getForgeScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Export every known forge to a file in the plugin data folder, a few
+     * forges per tick.
+     * @param fileName - name of the file to write, relative to the data folder
+     * @param whenDone - run on the main thread once the export is done. Can be null.
+     * @return the running export
+     * @throws IOException if the file can't be created
+     */
+    public ForgeExport exportForges(String fileName, ForgeExport.Format format, Runnable whenDone)
+            throws IOException {
+        getDataFolder().mkdirs();
+        ForgeExport export = new ForgeExport(this, new File(getDataFolder(), fileName), format, whenDone);
+        export.start();
+        exports.add(export);
+        return export;
+    }
+
+    void exportDone(ForgeExport export) {
+        exports.remove(export);
+    }
+
 /*    void registerEvent(Event.Type type, org.bukkit.event.Listener listener, Event.Priority priority) {
         getServer().getPluginManager().registerEvent(type, listener, priority, this);
     }*/
 
+    void registerEvents(org.bukkit.event.Listener listener) {
+        if (!ForgeTrace.AVAILABLE) {
+            getServer().getPluginManager().registerEvents(listener, this);
+            return;
+        }
+
+        // Same as registerEvents, but with executors that trace each handler.
+        for (Method method : listener.getClass().getDeclaredMethods()) {
+            EventHandler handler = method.getAnnotation(EventHandler.class);
+            Class<?>[] params = method.getParameterTypes();
+            if (handler == null || params.length != 1 || !Event.class.isAssignableFrom(params[0])) {
+                continue;
+            }
+            Class<? extends Event> eventClass = params[0].asSubclass(Event.class);
+            method.setAccessible(true);
+            getServer().getPluginManager().registerEvent(eventClass, listener, handler.priority(),
+                    ForgeTrace.executor(method, eventClass), this, handler.ignoreCancelled());
+        }
+    }
+
     static void saveActiveForges(HashMap<Location, Forge> activeForges) {
         // TODO: Clean up this stupidity.
         main.saveActive(activeForges);
@@ -115,10 +181,14 @@ public class DwarfForge extends JavaPlugin {
 
     void saveActive(HashMap<Location, Forge> activeForges) {
         File fout = new File(getDataFolder(), "active_forges");
+        Object trace = ForgeTrace.beginPersistence();
+        int count = 0;
         try {
             DataOutputStream out = new DataOutputStream(new FileOutputStream(fout));
-            int count = 0;
-            for (Forge forge : activeForges.values()) {
+            // Waiting forges are saved too; they wait again after a restore.
+            ArrayList<Forge> forges = new ArrayList<Forge>(activeForges.values());
+            forges.addAll(ForgeQuota.getWaitingForges());
+            for (Forge forge : forges) {
                 Location loc = forge.getLocation();
                 out.writeUTF(loc.getWorld().getName());
                 out.writeDouble(loc.getX());
@@ -131,6 +201,7 @@ public class DwarfForge extends JavaPlugin {
         } catch (Exception e) {
             log.severe("Could not save active forges to file: " + e);
         }
+        ForgeTrace.endPersistence(trace, "save", count);
     }
 
     static void restoreActiveForges(HashMap<Location, Forge> activeForges) {
@@ -142,27 +213,43 @@ public class DwarfForge extends JavaPlugin {
         activeForges.clear();
         File fin = new File(getDataFolder(), "active_forges");
         if (fin.exists()) {
+            Object trace = ForgeTrace.beginPersistence();
+            int count = 0;
             try {
+                ArrayList<Location> saved = new ArrayList<Location>();
                 DataInputStream in = new DataInputStream(new FileInputStream(fin));
-                int count = 0;
                 while (true) {
                     try {
                         String name = in.readUTF();
                         double x = in.readDouble();
                         double y = in.readDouble();
                         double z = in.readDouble();
-                        Location loc = new Location(getServer().getWorld(name), x, y, z);
-                        activeForges.put(loc, new Forge(loc));
-                        count += 1;
+                        World world = getServer().getWorld(name);
+                        if (world == null) {
+                            log.warning("Skipping forge in unknown world " + name);
+                            continue;
+                        }
+                        saved.add(new Location(world, x, y, z));
                     } catch (EOFException e) {
                         break;
                     }
                 }
                 in.close();
+
+                // Only restore forges that are still forges.
+                ForgeRestore check = new ForgeRestore();
+                for (Location loc : check.check(saved)) {
+                    Forge.restore(loc);
+                    count += 1;
+                }
                 log.info("Restored " + count + " active Forges.");
+                if (check.getDropped() > 0) {
+                    log.info("Dropped " + check.getDropped() + " saved Forges that are no longer Forges.");
+                }
             } catch (Exception e) {
                 log.severe("Something went wrong with file while restoring forges: " + e);
             }
+            ForgeTrace.endPersistence(trace, "restore", count);
         }
     }
 
@@ -22,22 +22,26 @@
 
 package org.simiancage.bukkit.DwarfForge;
 
-import net.minecraft.server.v1_5_R2.BlockFurnace;
 
 import org.apache.commons.lang.Validate;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.Furnace;
-import org.bukkit.craftbukkit.v1_5_R2.CraftWorld;
+import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.material.FurnaceAndDispenser;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 class Forge implements Runnable {
@@ -46,8 +50,6 @@ class Forge implements Runnable {
     static final int FUEL_SLOT = 1;
     static final int PRODUCT_SLOT = 2;
 
-    private static final int INVALID_TASK = -1;
-
     // These durations must all be less than max short.
     // Additionally, TASK_DURATION + AVOID_STAMPEDE < BURN_DURATION.
     private static final short ZERO_DURATION = 0;
@@ -55,8 +57,29 @@ class Forge implements Runnable {
     private static final short TASK_DURATION = 20 * Utils.MINS;
     private static final short BURN_DURATION = 25 * Utils.MINS;
 
+    // Bounds of the adaptive update interval; see nextDelay().
+    private static final short MIN_DELAY = Utils.SECS;
+    private static final short MIN_BACKOFF = 5 * Utils.SECS;
+    // Longest wait between updates, even while the server lags. A lit
+    // furnace is topped up once its burn time drops to this, so it must
+    // never wait longer; see furnaceNeeds() and slowed().
+    static final long MAX_DELAY = TASK_DURATION + AVOID_STAMPEDE;
+
     private Log log = Log.getLogger();
     static HashMap<Location, Forge> active = new HashMap<Location, Forge>();
+    // Active forges by world name and chunk; see Utils.chunkKey.
+    private static HashMap<String, HashMap<Long, ArrayList<Forge>>> byChunk =
+            new HashMap<String, HashMap<Long, ArrayList<Forge>>>();
+    // Inactive forges handed out by find(), so that all events on the same
+    // block share one Forge. The least recently used ones are dropped.
+    private static final int INTERN_LIMIT = 256;
+    private static LinkedHashMap<Location, Forge> interned =
+            new LinkedHashMap<Location, Forge>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Location, Forge> eldest) {
+                    return size() > INTERN_LIMIT;
+                }
+            };
     private static java.util.Random rnd = new java.util.Random();
 
 
@@ -66,19 +89,63 @@ class Forge implements Runnable {
 
 
     private Location loc;
-    private int task = INVALID_TASK;
+
+    // When the forge's chunk was unloaded, or 0 while it is loaded.
+    private long unloadedSince = 0;
+
+    // Forges sharing our input chest; null if there is no input chest.
+    private ForgeCluster cluster;
+
+    // When update() last ran, or 0 if never.
+    private long lastUpdate = 0;
+
+    // Items smelted since the server started.
+    private long itemsSmelted = 0;
+
+    // When the forge was last toggled by a player, and how many toggles are
+    // queued but haven't run yet; see requestToggle().
+    private long lastToggle = 0;
+    private int pendingToggles = 0;
+
+    // The player who last turned the forge on, if any; see ForgeQuota.
+    private String owner = null;
+
+    // See getVersion().
+    private int version = 0;
+
+    // Whether TransferPlanner is working out transfers for this forge.
+    private boolean planning = false;
+
+    // Current idle update interval, or 0 while busy; see nextDelay().
+    private short backoff = 0;
+
+    // Whether the last update found nothing to smelt in the input chest.
+    private boolean starved = false;
+
+    // The output chest the last update could not move product into, if any.
+    private Location blockedOn = null;
+
+    // Where the last update moved product to.
+    private Location productChest = null;
+
+    // The chest a sleeping forge waits on, or null while awake, and whether
+    // it waits for the chest to refill or drain.
+    private Location sleepingOn = null;
+    private ChestWatch sleepWatch = null;
+
+    // Virtual forge bookkeeping; see virtualUpdate().
+    private long lastVirtualUpdate = 0;
+    private int lastSmelted = 0;
+    private double smeltBacklog = 0;
+    private double fuelCredit = 0;
 
 
     public Forge(Block block) {
-        loc = block.getLocation();
-        Config.getInstance();
-        log.debug("Forge toggled at", loc.toString());
+        this(block.getLocation());
     }
 
     public Forge(Location loc) {
-        Config.getInstance();
         this.loc = loc;
-        log.debug("Forge toggled at", loc.toString());
     }
 
     @Override
@@ -132,37 +199,83 @@ class Forge implements Runnable {
     }
 
     private void internalsSetFurnaceBurning(boolean flag) {
-        // This gets into Craftbukkit internals, but it's simple and works.
+        // This gets into Craftbukkit internals where they can be found.
         // See net.minecraft.server.BlockFurnace.java:69-84 (approx).
-        CraftWorld world = (CraftWorld) loc.getWorld();
-        BlockFurnace.a(flag, world.getHandle(),
-                loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        Utils.internals().setBurning(getBlock(), flag);
     }
 
     private void ignite() {
-        Furnace state = (Furnace) getBlock().getState();
-        internalsSetFurnaceBurning(true);
-        state.setBurnTime(BURN_DURATION);
-        state.update();
+        ForgeTrace.step(ForgeTrace.FURNACE);
+        FurnaceWriter.set(this, true);
     }
 
     private void douse() {
-        Furnace state = (Furnace) getBlock().getState();
-        internalsSetFurnaceBurning(false);
-        state.setBurnTime(ZERO_DURATION);
-        state.update();
+        ForgeTrace.step(ForgeTrace.FURNACE);
+        FurnaceWriter.set(this, false);
+    }
+
+    /**
+     * Whether the furnace block needs a write to be lit or out. A lit
+     * furnace only needs its burn time topped up once it might run out
+     * before the next update. A virtual forge's furnace is lit for show
+     * only and gets no burn time; see writeFurnace().
+     */
+    boolean furnaceNeeds(boolean lit) {
+        Block block = getBlock();
+        Material type = block.getType();
+        if (type != Material.FURNACE && type != Material.BURNING_FURNACE) {
+            return false;
+        }
+        if (lit != (type == Material.BURNING_FURNACE)) {
+            return true;
+        }
+        if (lit && Config.isVirtualForge()) {
+            return false;
+        }
+        short burnTime = ((Furnace) block.getState()).getBurnTime();
+        return lit ? burnTime <= MAX_DELAY : burnTime > ZERO_DURATION;
+    }
+
+    // The delay stretched by the lag slowdown, capped at MAX_DELAY so a lit
+    // furnace does not burn out before its next update.
+    static long slowed(long delay, int slowdown) {
+        return Math.max(delay, Math.min(delay * slowdown, MAX_DELAY));
+    }
+
+    // Write the furnace block; see FurnaceWriter.
+    void writeFurnace(boolean lit) {
+        Block block = getBlock();
+        boolean switched = (block.getType() == Material.BURNING_FURNACE) != lit;
+        if (switched) {
+            internalsSetFurnaceBurning(lit);
+        }
+
+        // Get the furnace state only after switching the block; switching
+        // may replace the furnace. CraftFurnace writes the burn time
+        // straight through, so an unswitched block needs no update(), which
+        // would only resend the same block to clients.
+        // A lit furnace with no burn time stays lit, but cooks nothing
+        // unless it burns fuel of its own; virtual forges smelt from the
+        // chests instead, so they must not let the server cook for free.
+        Furnace state = (Furnace) block.getState();
+        state.setBurnTime((lit && !Config.isVirtualForge()) ? BURN_DURATION : ZERO_DURATION);
+        if (switched) {
+            state.update();
+        }
     }
 
 
     // Returns false if forge should be deactivated.
     boolean updateProduct() {
-        Furnace state = (Furnace) getBlock().getState();
-        Inventory blockInv = state.getInventory();
+        return updateProduct(getFurnaceInventory());
+    }
+
+    boolean updateProduct(Inventory blockInv) {
+        ForgeTrace.step(ForgeTrace.PRODUCT);
+        blockedOn = null;
 
         ItemStack item = blockInv.getItem(PRODUCT_SLOT);
         if (item != null && item.getType() != Material.AIR) {
-            blockInv.clear(PRODUCT_SLOT);
-
             // Item destination: default is output chest.
             Block dest = getOutputChest();
 
@@ -172,87 +285,190 @@ class Forge implements Runnable {
                 dest = getInputChest();
             }
 
-            ItemStack remains = addTo(item, dest, false);
-            if (remains != null) {
-                // Put what remains back into product slot.
-                blockInv.setItem(PRODUCT_SLOT, remains);
-
-                // See if the raw slot is full. If so, make sure it
-                // is compatible with what remains. If not, shut it
-                // down.
-                ItemStack raw = blockInv.getItem(RAW_SLOT);
-                if (raw != null && raw.getType() != Material.AIR) {
-                    if (Utils.resultOfCooking(raw.getType()) != remains.getType()) {
-                        return false;
-                    }
-                }
-            }
+            return moveProduct(blockInv, item, dest);
         }
 
         return true;
     }
 
+    /**
+     * Move the product out of the furnace into the given chest.
+     * @return false if what remains in the product slot blocks the raw material
+     */
+    boolean moveProduct(Inventory blockInv, ItemStack item, Block dest) {
+        blockInv.clear(PRODUCT_SLOT);
+        productChest = (dest != null) ? dest.getLocation() : null;
+
+        ItemStack remains = addTo(item, dest, false);
+        int moved = item.getAmount() - (remains != null ? remains.getAmount() : 0);
+        ForgeTrace.moved(moved);
+        ForgeEvents.moved(this, moved);
+        if (remains != null) {
+            // Put what remains back into product slot; stop retrying until
+            // the chest has room again.
+            blockInv.setItem(PRODUCT_SLOT, remains);
+            blockedOn = productChest;
+            return rawMatchesProduct(blockInv, remains);
+        }
+
+        return true;
+    }
+
+    // See if the raw slot is full. If so, make sure it is compatible with
+    // what remains in the product slot. If not, it must be shut down.
+    static boolean rawMatchesProduct(Inventory blockInv, ItemStack product) {
+        ItemStack raw = blockInv.getItem(RAW_SLOT);
+        if (raw != null && raw.getType() != Material.AIR) {
+            return Utils.resultOfCooking(raw.getType()) == product.getType();
+        }
+        return true;
+    }
+
     /**
      * Update the raw material slot of the forge.
      * @return true if forge can continue working
      */
     boolean updateRawMaterial() {
-        Furnace state = (Furnace) getBlock().getState();
-        Inventory blockInv = state.getInventory();
+        return updateRawMaterial(getFurnaceInventory());
+    }
+
+    boolean updateRawMaterial(Inventory blockInv) {
+        ForgeTrace.step(ForgeTrace.RAW_MATERIAL);
+        starved = false;
 
         // Can only reload if the raw material slot is empty.
         ItemStack raw = blockInv.getItem(RAW_SLOT);
         if (raw != null && raw.getType() != Material.AIR) {
             // Something already in the raw slot; is it smeltable?
             return Utils.canCook(raw.getType());
-        } else {
-            // Can only reload if an input chest is available.
-            Block input = getInputChest();
-            if (input != null) {
-                BlockState inpstate = input.getState();
-                if (inpstate instanceof InventoryHolder) {
-                    Inventory inpInv = ((InventoryHolder)inpstate).getInventory();
-
-                    // Check for the same item first
-                    Material want = Utils.getRawProduct(blockInv.getItem(PRODUCT_SLOT).getType());
-                    if (inpInv.contains(want)) {
-                        ItemStack inp = inpInv.getItem(inpInv.first(want));
-                        inpInv.removeItem(inp);
-                        blockInv.setItem(RAW_SLOT, inp);
-                        return true;
-                    }
-                    // Can't find the same item, look for anything
-                    for (ItemStack item : inpInv.getContents()) {
-                        if (Utils.canCook(item.getType())) {
-                            int takeAmount = 1;
-                            // Take all, because it's generally more efficent
-                            if ((item.getAmount()) > 1) {
-                                takeAmount = item.getAmount();
-                            }
-                            ItemStack toTake = item.clone();
-                            toTake.setAmount(takeAmount);
-                            HashMap<Integer, ItemStack> ghost = inpInv.removeItem(toTake);
-                            if (!ghost.isEmpty()) {
-                                toTake.setAmount(toTake.getAmount() - ghost.get(0).getAmount());
-                            }
-                            blockInv.setItem(FUEL_SLOT, toTake);
-                            return true;
-                        }
-                    }
-                    return false;
-                }
+        }
+
+        // Can only reload if an input chest is available.
+        Block input = getInputChest();
+        ForgeCluster cluster = joinCluster(input);
+        Inventory inpInv = getInventory(input);
+        if (inpInv == null) {
+            return false;
+        }
+
+        int slot = findRawSlot(inpInv, blockInv.getItem(PRODUCT_SLOT));
+        if (slot < 0) {
+            // Nothing left in the chest; try the chests pooled with it, then
+            // help out a busy sibling instead.
+            starved = !loadRawFromPool(input, cluster, blockInv) && !stealRawMaterial(cluster, blockInv);
+            return !starved;
+        }
+
+        loadShare(cluster, inpInv, slot, blockInv, RAW_SLOT);
+        return true;
+    }
+
+    // The slot of the next raw material to load, or -1 if there is none.
+    private static int findRawSlot(Inventory inv, ItemStack product) {
+        // Check for the raw material of the current product first.
+        int slot = -1;
+        if (product != null && product.getType() != Material.AIR) {
+            Material want = Utils.getRawProduct(product.getType());
+            if (want != null) {
+                slot = inv.first(want);
             }
         }
 
+        // Can't find the same item, look for anything.
+        for (int i = 0; slot < 0 && i < inv.getSize(); ++i) {
+            ItemStack item = inv.getItem(i);
+            if (item != null && Utils.canCook(item.getType())) {
+                slot = i;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Load the raw material slot from the other chests in the input
+     * chest's storage pool.
+     * @return true if anything was loaded
+     */
+    boolean loadRawFromPool(Block input, ForgeCluster cluster, Inventory blockInv) {
+        StoragePool pool = StoragePool.of(input);
+        if (pool == null) {
+            return false;
+        }
+
+        ItemStack product = blockInv.getItem(PRODUCT_SLOT);
+        for (Inventory inv : pool.withInput(false)) {
+            int slot = findRawSlot(inv, product);
+            if (slot >= 0) {
+                loadShare(cluster, inv, slot, blockInv, RAW_SLOT);
+                pool.taken(inv);
+                return true;
+            }
+        }
         return false;
     }
 
+    // Take our share of the stack, so siblings sharing the chest get to work
+    // too.
+    private void loadShare(ForgeCluster cluster, Inventory from, int slot, Inventory blockInv, int toSlot) {
+        ItemStack item = from.getItem(slot);
+        int amount = ForgeCluster.share(cluster, this, toSlot, item);
+        Utils.moveFromSlot(from, slot, amount, blockInv, toSlot);
+        ForgeTrace.moved(amount);
+        ForgeEvents.moved(this, amount);
+    }
+
+    /**
+     * Take half the raw material of the busiest forge in the cluster.
+     * @return true if there was anything to take
+     */
+    boolean stealRawMaterial(ForgeCluster cluster, Inventory blockInv) {
+        if (cluster == null) {
+            return false;
+        }
+
+        // The stolen material must not clash with our product slot.
+        ItemStack product = blockInv.getItem(PRODUCT_SLOT);
+        Material result = (product != null && product.getType() != Material.AIR)
+                ? product.getType() : null;
+
+        Inventory busiest = null;
+        int most = 1;
+        for (Forge member : cluster.getMembers()) {
+            if (member == this || member.isUnloaded()) {
+                continue;
+            }
+            Inventory memberInv = member.getFurnaceInventory();
+            if (memberInv == null) {
+                continue;
+            }
+            ItemStack raw = memberInv.getItem(RAW_SLOT);
+            if (raw != null && raw.getAmount() > most && Utils.canCook(raw.getType())
+                    && (result == null || Utils.resultOfCooking(raw.getType()) == result)) {
+                busiest = memberInv;
+                most = raw.getAmount();
+            }
+        }
+        if (busiest == null) {
+            return false;
+        }
+
+        ItemStack toTake = busiest.getItem(RAW_SLOT).clone();
+        toTake.setAmount(most / 2);
+        Utils.takeFromSlot(busiest, RAW_SLOT, toTake.getAmount());
+        blockInv.setItem(RAW_SLOT, toTake);
+        ForgeTrace.moved(toTake.getAmount());
+        ForgeEvents.moved(this, toTake.getAmount());
+        return true;
+    }
+
     // Returns false if forge should be deactivated.
     boolean updateFuel() {
-        // TODO assert DFConfig.requireFuel()
+        return updateFuel(getFurnaceInventory());
+    }
 
-        Furnace state = (Furnace) getBlock().getState();
-        Inventory blockInv = state.getInventory();
+    boolean updateFuel(Inventory blockInv) {
+        // TODO assert DFConfig.requireFuel()
+        ForgeTrace.step(ForgeTrace.FUEL);
 
         // Can reload only if fuel slot is empty.
         ItemStack fuel = blockInv.getItem(FUEL_SLOT);
@@ -260,60 +476,270 @@ class Forge implements Runnable {
 
             // Can reload only if an input chest is available.
             Block input = getInputChest();
-            if (input != null) {
-                BlockState inpstate = input.getState();
-                if (inpstate instanceof InventoryHolder) {
-                    Inventory inpInv = ((InventoryHolder)inpstate).getInventory();
-
-                    for (ItemStack item : inpInv.getContents()) {
-                        if (Utils.canBurn(item.getType())) {
-                            int takeAmount = 1;
-                            // Only take 1/4 of stack, to allow multiple feeding
-                            if ((item.getAmount() / 4) > 1) {
-                                takeAmount = item.getAmount() / 4;
-                            }
-                            ItemStack toTake = item.clone();
-                            toTake.setAmount(takeAmount);
-                            HashMap<Integer, ItemStack> ghost = inpInv.removeItem(toTake);
-                            if (!ghost.isEmpty()) {
-                                toTake.setAmount(toTake.getAmount() - ghost.get(0).getAmount());
-                            }
-                            blockInv.setItem(FUEL_SLOT, toTake);
-                            return true;
-                        }
+            ForgeCluster cluster = joinCluster(input);
+            Inventory inpInv = getInventory(input);
+            if (inpInv == null) {
+                return false;
+            }
+
+            int slot = findFuelSlot(inpInv);
+            StoragePool pool = (slot < 0) ? StoragePool.of(input) : null;
+            if (pool != null) {
+                // Nothing in the chest; look in the chests pooled with it.
+                for (Inventory inv : pool.withInput(true)) {
+                    slot = findFuelSlot(inv);
+                    if (slot >= 0) {
+                        inpInv = inv;
+                        break;
                     }
-                    return false;
                 }
             }
+            if (slot < 0) {
+                return false;
+            }
+
+            // Only take our share of the stack, to allow multiple feeding.
+            loadShare(cluster, inpInv, slot, blockInv, FUEL_SLOT);
+            if (pool != null) {
+                pool.taken(inpInv);
+            }
+            return true;
         }
 
         return true;
     }
 
+    private static int findFuelSlot(Inventory inv) {
+        for (int slot = 0; slot < inv.getSize(); ++slot) {
+            ItemStack item = inv.getItem(slot);
+            if (item != null && Utils.canBurn(item.getType())) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Active forges join the cluster of forges sharing their input chest.
+    ForgeCluster joinCluster(Block input) {
+        if (isActive()) {
+            cluster = ForgeCluster.join(this, cluster, input);
+            return cluster;
+        }
+        return ForgeCluster.find(input);
+    }
+
+    Inventory getFurnaceInventory() {
+        BlockState state = getBlock().getState();
+        if (state instanceof Furnace) {
+            return ((Furnace) state).getInventory();
+        }
+        return null;
+    }
+
+    /**
+     * How many more of the item the given furnace slot can take.
+     */
+    int roomInSlot(int slot, ItemStack item) {
+        Inventory blockInv = getFurnaceInventory();
+        if (blockInv == null) {
+            return 0;
+        }
+        ItemStack current = blockInv.getItem(slot);
+        if (current == null || current.getType() == Material.AIR) {
+            return item.getMaxStackSize();
+        }
+        if (current.isSimilar(item)) {
+            return Math.max(0, item.getMaxStackSize() - current.getAmount());
+        }
+        return 0;
+    }
+
+    /**
+     * Virtual forge update: smelt a batch of items straight from the input
+     * chest into the output chest, at the configured items-per-second rate.
+     * The furnace inventory is not used; the furnace is only lit for show.
+     * @return false if forge should be deactivated
+     */
+    boolean virtualUpdate() {
+        long now = System.currentTimeMillis();
+        if (lastVirtualUpdate == 0) {
+            lastVirtualUpdate = now;
+        }
+
+        // An idle forge may have backed off for a long time; it only gets
+        // to smelt at its rate from when it had input again.
+        long elapsed = now - lastVirtualUpdate;
+        if (lastSmelted == 0) {
+            elapsed = Math.min(elapsed, Config.getVirtualCycle() * 1000L);
+        }
+        smeltBacklog += elapsed / 1000.0 * Config.getVirtualRate();
+        lastVirtualUpdate = now;
+
+        int budget = (int) smeltBacklog;
+        if (budget == 0) {
+            return true;
+        }
+        smeltBacklog -= budget;
+        lastSmelted = smeltInBulk(budget, Long.MAX_VALUE);
+
+        // With fuel required, a virtual forge shuts down like a real one
+        // when it runs out of something to do.
+        return lastSmelted > 0 || !Config.isRequireFuel();
+    }
+
+    /**
+     * Smelt up to budget items from the input chest into the output chest,
+     * limited by input, fuel (if required) and room in the output chest,
+     * and by how many ticks each item's recipe takes to cook.
+     * @return the number of items smelted
+     */
+    int smeltInBulk(int budget, long ticks) {
+        ForgeTrace.step(ForgeTrace.BULK_SMELT);
+        blockedOn = null;
+        Block inputChest = getInputChest();
+        Block outputChest = getOutputChest();
+        Inventory input = getInventory(inputChest);
+        Inventory output = getInventory(outputChest);
+        if (input == null || output == null) {
+            return 0;
+        }
+
+        // Smelt from the input chest, then from the chests pooled with it.
+        ArrayList<Inventory> sources = new ArrayList<Inventory>(1);
+        sources.add(input);
+        StoragePool inputPool = StoragePool.of(inputChest);
+        if (inputPool != null) {
+            sources.addAll(inputPool.withInput(false));
+        }
+        StoragePool outputPool = StoragePool.of(outputChest);
+
+        int smelted = 0;
+        boolean full = false;
+        starved = true;
+        for (Inventory source : sources) {
+            for (int slot = 0; slot < source.getSize() && smelted < budget; ++slot) {
+                ItemStack raw = source.getItem(slot);
+                if (raw == null || !Utils.canCook(raw.getType())) {
+                    continue;
+                }
+                starved = false;
+
+                ItemStack product = Utils.resultStackOfCooking(raw.getType());
+                int perItem = product.getAmount();
+
+                // Same special case as updateProduct: charcoal goes back to the
+                // input chest if fuel is required.
+                Block dest = outputChest;
+                int room;
+                if (Config.isRequireFuel() && product.getType() == Material.COAL) {
+                    dest = inputChest;
+                    room = Utils.roomFor(input, product);
+                } else {
+                    room = Utils.roomFor(output, product);
+                    if (outputPool != null) {
+                        room += outputPool.roomFor(product);
+                    }
+                }
+
+                int amount = Math.min(raw.getAmount(), budget - smelted);
+                amount = Math.min(amount, room / perItem);
+                if (amount <= 0 && dest == outputChest) {
+                    full = true;
+                }
+                int cook = Config.cookTicks(raw.getType());
+                amount = (int) Math.min(amount, ticks / cook);
+                if (amount > 0 && Config.isRequireFuel()) {
+                    amount = burnFuel(input, amount);
+                }
+                if (amount <= 0) {
+                    continue;
+                }
+
+                Utils.takeFromSlot(source, slot, amount);
+                if (source != input) {
+                    inputPool.taken(source);
+                }
+                product.setAmount(amount * perItem);
+                // Room was checked above; anything left over is dropped.
+                addTo(product, dest, true);
+                smelted += amount;
+                ticks -= (long) amount * cook;
+            }
+        }
+        ForgeTrace.moved(smelted);
+        itemsSmelted += smelted;
+        ForgeEvents.smelted(this, smelted);
+        ForgeEvents.moved(this, smelted);
+        productChest = outputChest.getLocation();
+        if (smelted == 0 && full) {
+            blockedOn = productChest;
+        }
+        return smelted;
+    }
+
+    /**
+     * Burn fuel from the input chest until there is enough to smelt wanted
+     * items, or the fuel runs out.
+     * @return how many of the wanted items may be smelted
+     */
+    private int burnFuel(Inventory input, int wanted) {
+        for (int slot = 0; slot < input.getSize() && fuelCredit < wanted; ++slot) {
+            ItemStack fuel = input.getItem(slot);
+            if (fuel == null || !Utils.canBurn(fuel.getType())) {
+                continue;
+            }
+
+            double perFuel = Utils.smeltsPerFuel(fuel.getType());
+            int take = Math.min(fuel.getAmount(), (int) Math.ceil((wanted - fuelCredit) / perFuel));
+            Material type = fuel.getType();
+            Utils.takeFromSlot(input, slot, take);
+            fuelCredit += take * perFuel;
+
+            // Preserve empty buckets, as the inventory listener does.
+            if (type == Material.LAVA_BUCKET) {
+                addToOutput(new ItemStack(Material.BUCKET, take), true);
+            }
+        }
+
+        int afford = Math.min(wanted, (int) fuelCredit);
+        fuelCredit -= afford;
+        return afford;
+    }
+
     void update() {
+        long start = System.nanoTime();
+        ForgeTrace.beginUpdate();
+        try {
+            updateForge();
+        } finally {
+            lastUpdate = System.currentTimeMillis();
+            ForgeStats.recordUpdate(this, System.nanoTime() - start);
+            ForgeTrace.endUpdate(this);
+        }
+    }
+
+    private void updateForge() {
         // TODO assert that the forge is active; when would we ever update an
         // inactive forge?
 
         if (isValid()) {
-            if (Config.isRequireFuel()) {
-                if (!updateProduct() || !updateRawMaterial() || !updateFuel()) {
-                    // Something is preventing further smelting. Unload fuel,
-                    // deactivate, and let it burn out naturally.
-                    // TODO This may not be the best option...? Try it for now.
-                    deactivate();
-                    unloadFuel();
+            if (Config.isVirtualForge()) {
+                if (virtualUpdate()) {
+                    ignite();
+                } else {
+                    deactivate(ForgeStopEvent.Reason.STALLED);
+                    douse();
                 }
+            } else if (isActive() && TransferPlanner.isEnabled()) {
+                // Work out the transfers off the main thread; the planner
+                // applies them and finishes the update later.
+                TransferPlanner.plan(this);
             } else {
-                // No fuel required; only user interaction changes forge state.
-                // No user interaction here; run the processes, but don't change
-                // active state.
-                updateProduct();
-                updateRawMaterial();
-                ignite();
+                updateFurnace();
             }
         } else {
             // No longer valid: deactivate.
-            deactivate();
+            deactivate(ForgeStopEvent.Reason.INVALID);
 
             // Douse only if fuel is not required.
             if (!Config.isRequireFuel()) {
@@ -323,21 +749,102 @@ class Forge implements Runnable {
         }
     }
 
+    // Reload and unload the furnace itself.
+    void updateFurnace() {
+        // One furnace state for the whole update.
+        Inventory blockInv = getFurnaceInventory();
+        if (Config.isRequireFuel()) {
+            finishFurnaceUpdate(updateProduct(blockInv) && updateRawMaterial(blockInv) && updateFuel(blockInv));
+        } else {
+            updateProduct(blockInv);
+            updateRawMaterial(blockInv);
+            finishFurnaceUpdate(true);
+        }
+    }
+
+    void finishFurnaceUpdate(boolean canContinue) {
+        version += 1;
+        if (!Config.isRequireFuel()) {
+            // No fuel required; only user interaction changes forge state.
+            // No user interaction here; the processes ran, but don't change
+            // active state.
+            ignite();
+        } else if (!canContinue) {
+            // Something is preventing further smelting. Unload fuel,
+            // deactivate, and let it burn out naturally.
+            // TODO This may not be the best option...? Try it for now.
+            deactivate(ForgeStopEvent.Reason.STALLED);
+            unloadFuel();
+        }
+    }
+
+    // Changes whenever DwarfForge reloads/unloads this forge or toggles it.
+    int getVersion() {
+        return version;
+    }
+
+    boolean isPlanning() {
+        return planning;
+    }
+
+    void setPlanning(boolean planning) {
+        this.planning = planning;
+    }
+
     // Called on furnace fuel burn events.
     void burnUpdate() {
-        update();
+        // The furnace is busy again; don't back off any further. A forge
+        // parked on a full output chest would only fail to unload again.
+        backoff = 0;
+        if (!isParked()) {
+            update();
+            rescheduleIfStuck();
+        }
     }
 
     // Called on furnace material smelt events.
     void smeltUpdate() {
         // After a normal update (caused by an item-smelted event), set
         // the new cook time.
-        update();
+        itemsSmelted += 1;
+        ForgeEvents.smelted(this, 1);
+        backoff = 0;
+        if (!isParked()) {
+            update();
+            rescheduleIfStuck();
+        }
         if (isActive()) {
-            ((Furnace) getBlock().getState()).setCookTime(Config.cookTime());
+            setCookTime((Furnace) getBlock().getState());
+        }
+    }
+
+    // An update driven by a furnace event found the output chest full or
+    // the input empty. Let nextDelay() park or sleep the forge now, as after
+    // a scheduled update, rather than at its next scheduled update; until
+    // then every event would only retry the same move. A plan under way
+    // does this itself once it is applied.
+    private void rescheduleIfStuck() {
+        if (!planning && (blockedOn != null || starved)) {
+            DwarfForge.main.getForgeScheduler().reschedule(this);
         }
     }
 
+    // The planner loads raw material after the smelt event set the cook
+    // time for an empty raw slot; set it for the new raw material.
+    void rawLoaded() {
+        if (isActive()) {
+            setCookTime((Furnace) getBlock().getState());
+        }
+    }
+
+    // Set the cook time for whatever is in the raw slot now, however it
+    // got there.
+    private static void setCookTime(Furnace state) {
+        ItemStack raw = state.getInventory().getItem(RAW_SLOT);
+        state.setCookTime((raw != null && raw.getType() != Material.AIR)
+                ? Config.cookTime(raw.getType()) : Config.cookTime());
+    }
+
     public void run() {
         update();
     }
@@ -347,57 +854,524 @@ class Forge implements Runnable {
         if (!isActive()) {
 
             // Add to active forge map.
-            active.put(loc, this);
+            register();
 
             // Start repeating task.
-            task = DwarfForge.main.queueRepeatingTask(
-                    0, TASK_DURATION + avoidStampedeDelay(), this);
+            startTask();
+            ForgeEvents.started(this);
 
             // TODO force save
         }
     }
 
-    private void deactivate() {
+    private void deactivate(ForgeStopEvent.Reason reason) {
         // Only deactivate if currently active.
         if (isActive()) {
+            ForgeEvents.stopped(this, reason);
 
-            // Remove from active forge map.
-            active.remove(loc);
+            // Remove from active forge map. Keep handing out this same Forge
+            // while it is inactive.
+            unregister();
+            owner = null;
+            ForgeCluster.leave(this, cluster);
+            cluster = null;
+            interned.put(loc, this);
 
             // Cancel repeating task.
-            if (task != INVALID_TASK) {
-                DwarfForge.main.cancelTask(task);
-                task = INVALID_TASK;
-            }
+            stopTask();
+            stopSleeping();
+            unloadedSince = 0;
 
             // TODO force save
         }
 
-        // TODO Sanity check: assert(task == INVALID_TASK)
+        // TODO Sanity check: assert(!isScheduled())
+    }
+
+    private void register() {
+        active.put(loc, this);
+        ForgeQuota.added(this, owner);
+        ForgeSweeper.added(this);
+
+        HashMap<Long, ArrayList<Forge>> world = byChunk.get(loc.getWorld().getName());
+        if (world == null) {
+            world = new HashMap<Long, ArrayList<Forge>>();
+            byChunk.put(loc.getWorld().getName(), world);
+        }
+        Long key = Utils.chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+        ArrayList<Forge> forges = world.get(key);
+        if (forges == null) {
+            forges = new ArrayList<Forge>(1);
+            world.put(key, forges);
+        }
+        forges.add(this);
+    }
+
+    private void unregister() {
+        active.remove(loc);
+        ForgeQuota.removed(this, owner);
+        ForgeSweeper.removed(this);
+
+        HashMap<Long, ArrayList<Forge>> world = byChunk.get(loc.getWorld().getName());
+        if (world != null) {
+            Long key = Utils.chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+            ArrayList<Forge> forges = world.get(key);
+            if (forges != null) {
+                forges.remove(this);
+                if (forges.isEmpty()) {
+                    world.remove(key);
+                }
+            }
+        }
+    }
+
+    private void startTask() {
+        ForgeScheduler scheduler = DwarfForge.main.getForgeScheduler();
+        if (scheduler.isScheduled(this)) {
+            return;
+        }
+
+        if (Config.isVirtualForge()) {
+            lastVirtualUpdate = System.currentTimeMillis();
+        }
+        backoff = 0;
+        scheduler.schedule(this, 0);
+    }
+
+    /**
+     * How long until the next update: soon enough for a busy forge to get
+     * its next load or unload on time, and backing off exponentially while
+     * the forge has nothing to do.
+     * @return delay in ticks; zero to stop updating
+     */
+    long nextDelay() {
+        if (!isActive() || isUnloaded()) {
+            return 0;
+        }
+
+        // A plan is under way; what it finds decides whether to park or
+        // sleep, once it is applied (see TransferPlanner.apply). Until then,
+        // check back soon in case the plan gets lost.
+        if (planning) {
+            return MIN_DELAY;
+        }
+
+        // Output chest full: park, along with any siblings unloading into
+        // the same chest, until it drains. Whatever is still in the furnace
+        // keeps smelting into the product slot meanwhile.
+        if (blockedOn != null) {
+            sleep(ChestWatch.DRAIN, blockedOn);
+            if (cluster != null) {
+                for (Forge member : cluster.getMembers()) {
+                    if (member != this && blockedOn.equals(member.productChest)) {
+                        member.park(blockedOn);
+                    }
+                }
+            }
+            return 0;
+        }
+
+        long busy = busyFor();
+        if (busy > 0) {
+            backoff = 0;
+            return Math.max(MIN_DELAY, Math.min(busy, TASK_DURATION));
+        }
+
+        // Nothing to smelt: sleep until the input chest changes.
+        if (starved && cluster != null) {
+            sleep(ChestWatch.REFILL, cluster.getChest());
+            return 0;
+        }
+
+        // Idle: back off up to the usual task duration. The random delay
+        // keeps idle forges from updating in lockstep.
+        if (backoff == 0) {
+            backoff = MIN_BACKOFF;
+        } else {
+            backoff = (short) Math.min(2 * backoff, TASK_DURATION);
+        }
+        return (backoff < TASK_DURATION) ? backoff : backoff + avoidStampedeDelay();
+    }
+
+    // Ticks until the forge runs out of work, or 0 if it is idle.
+    private long busyFor() {
+        if (Config.isVirtualForge()) {
+            return (lastSmelted > 0) ? Config.getVirtualCycle() * Utils.SECS : 0;
+        }
+
+        Inventory blockInv = getFurnaceInventory();
+        if (blockInv == null) {
+            return 0;
+        }
+        ItemStack raw = blockInv.getItem(RAW_SLOT);
+        if (raw == null || raw.getType() == Material.AIR) {
+            return 0;
+        }
+
+        // The raw slot runs empty, or the product slot fills up.
+        int items = raw.getAmount();
+        ItemStack product = blockInv.getItem(PRODUCT_SLOT);
+        if (product != null && product.getType() != Material.AIR) {
+            items = Math.min(items, product.getMaxStackSize() - product.getAmount());
+        }
+        return (long) items * Config.cookTicks(raw.getType());
+    }
+
+    // Called when the chest a sleeping forge waits on changes.
+    void wake() {
+        starved = false;
+        blockedOn = null;
+        resetBackoff();
+    }
+
+    void setStarved(boolean starved) {
+        this.starved = starved;
+    }
+
+    void setBlockedOn(Block chest) {
+        productChest = (chest != null) ? chest.getLocation() : null;
+        blockedOn = productChest;
+    }
+
+    boolean isSleeping() {
+        return sleepingOn != null;
+    }
+
+    // Whether the forge is parked on a full output chest.
+    boolean isParked() {
+        return sleepWatch == ChestWatch.DRAIN;
+    }
+
+    private void sleep(ChestWatch watch, Location chest) {
+        stopSleeping();
+        sleepWatch = watch;
+        sleepingOn = chest;
+        watch.watch(chest, this);
+        if (watch == ChestWatch.DRAIN) {
+            ForgeEvents.jammed(this, chest);
+        }
+    }
+
+    // Park a sibling on the full chest it unloads into too.
+    private void park(Location chest) {
+        if (isActive() && !isUnloaded() && !isSleeping() && !isPlanning()) {
+            stopTask();
+            sleep(ChestWatch.DRAIN, chest);
+        }
+    }
+
+    /**
+     * Something relevant happened to the forge: drop any backoff, wake it
+     * up if it sleeps, and make sure it updates soon.
+     */
+    void resetBackoff() {
+        backoff = 0;
+        stopSleeping();
+        if (isActive() && !isUnloaded()) {
+            ForgeScheduler scheduler = DwarfForge.main.getForgeScheduler();
+            long delay = scheduler.getDelay(this);
+            if (delay < 0 || delay > MIN_BACKOFF) {
+                scheduler.schedule(this, MIN_DELAY);
+            }
+        }
+    }
+
+    private void stopTask() {
+        DwarfForge.main.getForgeScheduler().cancel(this);
+    }
+
+    private void stopSleeping() {
+        if (sleepingOn != null) {
+            sleepWatch.unwatch(sleepingOn, this);
+            sleepingOn = null;
+            sleepWatch = null;
+        }
+    }
+
+    /**
+     * Called when the forge's chunk unloads. An unloaded forge stays active
+     * but stops ticking; the time it spends unloaded is caught up on in one
+     * go by {@link #resume()}.
+     */
+    void suspend() {
+        if (isActive() && unloadedSince == 0) {
+            stopTask();
+            stopSleeping();
+            unloadedSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Called after the forge's chunk loads again. Smelts what the forge would
+     * have smelted while unloaded, limited by input, fuel and output room,
+     * then resumes ticking.
+     */
+    void resume() {
+        if (!isActive() || unloadedSince == 0) {
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - unloadedSince;
+        unloadedSince = 0;
+
+        // An invalid forge is cleaned up by the first update, as usual.
+        if (isValid()) {
+            catchUp(elapsed);
+        }
+        lastSmelted = 0;
+        startTask();
+    }
+
+    boolean isUnloaded() {
+        return unloadedSince != 0;
+    }
+
+    long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    long getItemsSmelted() {
+        return itemsSmelted;
+    }
+
+    ForgeCluster getCluster() {
+        return cluster;
+    }
+
+    // How many forges are stacked below this one.
+    int getStackLevel() {
+        int level = 0;
+        Block below = getBlock().getRelative(BlockFace.DOWN);
+        while (Utils.isBlockOfType(below, Material.FURNACE, Material.BURNING_FURNACE)) {
+            level += 1;
+            below = below.getRelative(BlockFace.DOWN);
+        }
+        return level;
+    }
+
+    private void catchUp(long elapsed) {
+        // Real forges smelt one item per cook time of its recipe; virtual
+        // ones at their rate.
+        int budget;
+        long ticks;
+        if (Config.isVirtualForge()) {
+            budget = (int) (elapsed / 1000.0 * Config.getVirtualRate());
+            ticks = Long.MAX_VALUE;
+        } else {
+            ticks = elapsed * Utils.SECS / 1000;
+            budget = (int) Math.min(Integer.MAX_VALUE, ticks);
+        }
+        if (budget <= 0) {
+            return;
+        }
+
+        // Clear out the product slot first, as a normal update would.
+        if (!Config.isVirtualForge()) {
+            updateProduct();
+        }
+        int smelted = smeltInBulk(budget, ticks);
+        log.debug("Forge caught up " + smelted + " items at", loc);
+    }
+
+    /**
+     * Re-register a forge that was saved as active. Forges in loaded chunks
+     * start ticking right away; the others wait for their chunk to load.
+     */
+    static void restore(Location loc) {
+        if (active.containsKey(loc)) {
+            return;
+        }
+        Forge forge = new Forge(loc);
+        if (!ForgeQuota.hasRoom(forge, null)) {
+            ForgeQuota.enqueue(forge, null);
+            return;
+        }
+        forge.register();
+        if (loc.getWorld().isChunkLoaded(loc.getBlockX() >> 4, loc.getBlockZ() >> 4)) {
+            forge.startTask();
+        } else {
+            forge.unloadedSince = System.currentTimeMillis();
+        }
+    }
+
+    // Worlds with active forges.
+    static List<String> activeWorlds() {
+        return new ArrayList<String>(byChunk.keySet());
+    }
+
+    // Keys (see Utils.chunkKey) of the chunks with active forges.
+    static List<Long> activeChunks(String world) {
+        HashMap<Long, ArrayList<Forge>> chunks = byChunk.get(world);
+        if (chunks != null) {
+            return new ArrayList<Long>(chunks.keySet());
+        }
+        return Collections.emptyList();
+    }
+
+    // The index itself, by chunk key; null if the world has no active forges.
+    // Don't modify.
+    static HashMap<Long, ArrayList<Forge>> activeByChunk(String world) {
+        return byChunk.get(world);
+    }
+
+    static List<Forge> activeInChunk(String world, long key) {
+        HashMap<Long, ArrayList<Forge>> chunks = byChunk.get(world);
+        if (chunks != null) {
+            ArrayList<Forge> forges = chunks.get(key);
+            if (forges != null) {
+                return forges;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    // Active forges in the given chunk.
+    static List<Forge> activeInChunk(Chunk chunk) {
+        HashMap<Long, ArrayList<Forge>> world = byChunk.get(chunk.getWorld().getName());
+        if (world != null) {
+            ArrayList<Forge> forges = world.get(Utils.chunkKey(chunk.getX(), chunk.getZ()));
+            if (forges != null) {
+                return forges;
+            }
+        }
+        return Collections.emptyList();
     }
 
     boolean isActive() {
         return active.containsKey(loc);
     }
 
+    /**
+     * Queue a toggle of the forge, unless it was toggled within the
+     * cooldown. Toggles requested before the queued one runs collapse into
+     * it: an even number of them leaves the forge as it is.
+     * @param player - who toggles the forge
+     * @return false if the request was ignored
+     */
+    boolean requestToggle(final String player) {
+        long now = System.currentTimeMillis();
+        if (now - lastToggle < Config.getToggleCooldown()) {
+            return false;
+        }
+        lastToggle = now;
+
+        pendingToggles += 1;
+        if (pendingToggles == 1) {
+            DwarfForge.main.queueTask(new Runnable() {
+                public void run() {
+                    boolean flip = (pendingToggles % 2) == 1;
+                    pendingToggles = 0;
+                    if (flip) {
+                        toggle(player);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
     // Manual, user interaction to startup/shutdown a forge.
-    void toggle() {
+    void toggle(String player) {
+        log.debug("Forge toggled at", loc.toString());
+        version += 1;
         if (isActive()) {
             if (Config.isRequireFuel()) {
                 unloadFuel();
                 // TODO Save partial fuel.
             }
-            deactivate();
+            deactivate(ForgeStopEvent.Reason.TOGGLED);
             douse();
+        } else if (isWaiting()) {
+            // Toggled again while waiting: leave the line.
+            ForgeQuota.dequeue(this, owner);
+            tell(player, "The forge no longer awaits its turn.");
+        } else if (ForgeQuota.hasRoom(this, player)) {
+            owner = player;
+            start();
         } else {
-            activate();
-            ((Furnace) getBlock().getState()).setCookTime(Config.cookTime());
+            owner = player;
+            ForgeQuota.enqueue(this, owner);
+            tell(player, "Too many forges burn already; this one must await its turn.");
         }
     }
 
+    // Admitted by ForgeQuota after waiting.
+    void admit() {
+        version += 1;
+        start();
+    }
+
+    private void start() {
+        activate();
+        setCookTime((Furnace) getBlock().getState());
+    }
+
+    boolean isWaiting() {
+        return ForgeQuota.findWaiting(loc) == this;
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    // Whether the forge's chunk is loaded; doesn't load it.
+    boolean isLoaded() {
+        return loc.getWorld().isChunkLoaded(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+    }
+
+    /**
+     * Shut the forge down if its blocks no longer make a forge. Only call
+     * for loaded forges; checking loads the chunk otherwise.
+     * @return whether the forge was shut down
+     */
+    boolean prune() {
+        if (!isActive() || isValid()) {
+            return false;
+        }
+        deactivate(ForgeStopEvent.Reason.INVALID);
+
+        // Douse only if fuel is not required, and there is still a furnace.
+        if (!Config.isRequireFuel()
+                && Utils.isBlockOfType(getBlock(), Material.FURNACE, Material.BURNING_FURNACE)) {
+            douse();
+        }
+        return true;
+    }
+
+    /**
+     * Restart an active forge that is neither scheduled nor waiting on
+     * anything, so would otherwise never update again.
+     * @return whether the forge was restarted
+     */
+    boolean restartLost() {
+        if (!isActive() || isUnloaded() || isSleeping() || planning
+                || DwarfForge.main.getForgeScheduler().isScheduled(this)) {
+            return false;
+        }
+        startTask();
+        return true;
+    }
+
+    private static void tell(String player, String message) {
+        Player target = (player != null) ? DwarfForge.main.getServer().getPlayerExact(player) : null;
+        if (target != null) {
+            target.sendMessage(message);
+        }
+    }
+
+    // Read the facing straight from the block data, as FurnaceAndDispenser
+    // does; cheaper than a block state and its material data.
     private static BlockFace getForward(Block block) {
-        Furnace state = (Furnace) block.getState();
-        return ((FurnaceAndDispenser) state.getData()).getFacing();
+        switch (block.getData()) {
+            case 0x2:
+                return BlockFace.NORTH;
+            case 0x3:
+                return BlockFace.SOUTH;
+            case 0x4:
+                return BlockFace.WEST;
+            case 0x5:
+            default:
+                return BlockFace.EAST;
+        }
     }
 
     private static Block getForgeChest(Block block, BlockFace dir) {
@@ -435,13 +1409,20 @@ class Forge implements Runnable {
     Block getInputChest() {
         // Look for a chest stage-right (i.e. "next" cardinal face);
         Block block = getBlock();
-        return getForgeChest(block, Utils.nextCardinalFace(getForward(block)));
+        return traceChestLookup(block, Utils.nextCardinalFace(getForward(block)));
     }
 
     Block getOutputChest() {
         // Look for a chest stage-left (i.e. "prev" cardinal face).
         Block block = getBlock();
-        return getForgeChest(block, Utils.prevCardinalFace(getForward(block)));
+        return traceChestLookup(block, Utils.prevCardinalFace(getForward(block)));
+    }
+
+    private Block traceChestLookup(Block block, BlockFace dir) {
+        Object trace = ForgeTrace.beginChestLookup();
+        Block chest = getForgeChest(block, dir);
+        ForgeTrace.endChestLookup(trace, loc, dir.name(), chest != null);
+        return chest;
     }
 
     // This may get called if fuel is required and the operator toggles the forge off.
@@ -511,21 +1492,40 @@ class Forge implements Runnable {
                 }
             }
             HashMap<Integer, ItemStack> remains = chestInv.addItem(item);
-            if (remains.isEmpty()) {
+            ItemStack left = remains.isEmpty() ? null : remains.get(0);
+            if (left != null) {
+                // Destination chest full; overflow into its storage pool.
+                StoragePool pool = StoragePool.of(chest);
+                if (pool != null) {
+                    left = pool.add(left);
+                }
+            }
+            if (left == null) {
                 // Everything fit!
                 return null;
             } else {
                 // Destination chest full.
                 if (dropRemains) {
-                    loc.getWorld().dropItemNaturally(loc, remains.get(0));
+                    loc.getWorld().dropItemNaturally(loc, left);
                     return null;
                 } else {
-                    return remains.get(0);
+                    return left;
                 }
             }
         }
     }
 
+    static Inventory getInventory(Block chest) {
+        if (chest == null) {
+            return null;
+        }
+        BlockState state = chest.getState();
+        if (state instanceof InventoryHolder) {
+            return ((InventoryHolder) state).getInventory();
+        }
+        return null;
+    }
+
     ItemStack addToOutput(ItemStack item, boolean dropRemains) {
         return addTo(item, getOutputChest(), dropRemains);
     }
@@ -535,19 +1535,29 @@ class Forge implements Runnable {
     }
 
     static Forge find(Location loc) {
-        // Is it in the active Forges?
-        if (active.containsKey(loc)) {
-            return active.get(loc);
+        // Is it in the active or waiting Forges?
+        Forge forge = active.get(loc);
+        if (forge == null) {
+            forge = ForgeQuota.findWaiting(loc);
+        }
+        if (forge != null) {
+            return forge;
         }
 
-        // Does the location block represent a valid Forge? If so, return a new one.
+        // Does the location block represent a valid Forge? If so, return the
+        // one Forge for that block, so that all events share it.
         if (isValid(loc.getBlock())) {
-            return new Forge(loc);
+            forge = interned.get(loc);
+            if (forge == null) {
+                forge = new Forge(loc);
+                interned.put(loc, forge);
+            }
+            return forge;
         }
 
         // Otherwise, null.
+        interned.remove(loc);
         return null;
     }
 
 }
-
@@ -0,0 +1,134 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * What forges smelted and moved during the last tick, fired once per tick
+ * for all forges together rather than once per item. Only forges that did
+ * anything are included, and the event isn't fired for idle ticks.
+ */
+public class ForgeActivityEvent extends Event {
+
+    /**
+     * What one forge did during the tick.
+     */
+    public static final class Activity {
+
+        private final Location location;
+        private final String owner;
+        private int smelted = 0;
+        private int moved = 0;
+
+        Activity(Forge forge) {
+            location = forge.getLocation().clone();
+            owner = forge.getOwner();
+        }
+
+        public Location getLocation() {
+            return location.clone();
+        }
+
+        /**
+         * @return name of the player who lit the forge, or null if not known
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * @return items smelted
+         */
+        public int getSmelted() {
+            return smelted;
+        }
+
+        /**
+         * @return items moved between the forge's chests and furnace
+         */
+        public int getMoved() {
+            return moved;
+        }
+
+        void add(int smelted, int moved) {
+            this.smelted += smelted;
+            this.moved += moved;
+        }
+    }
+
+    private static final HandlerList handlers = new HandlerList();
+
+    private final List<Activity> activity;
+    private final int smelted;
+    private final int moved;
+
+    ForgeActivityEvent(List<Activity> activity) {
+        this.activity = Collections.unmodifiableList(activity);
+        int smelted = 0;
+        int moved = 0;
+        for (Activity forge : activity) {
+            smelted += forge.getSmelted();
+            moved += forge.getMoved();
+        }
+        this.smelted = smelted;
+        this.moved = moved;
+    }
+
+    /**
+     * @return what each forge did, one entry per forge
+     */
+    public List<Activity> getActivity() {
+        return activity;
+    }
+
+    /**
+     * @return items smelted by all forges
+     */
+    public int getSmelted() {
+        return smelted;
+    }
+
+    /**
+     * @return items moved by all forges
+     */
+    public int getMoved() {
+        return moved;
+    }
+
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Active forges that share an input chest, usually through stacking. Raw
+ * materials and fuel from the shared chest are split among the members, so
+ * that one forge does not hoard the input while its siblings idle.
+ */
+class ForgeCluster {
+
+    private static HashMap<Location, ForgeCluster> byChest = new HashMap<Location, ForgeCluster>();
+
+    private final Location chest;
+    private final ArrayList<Forge> members = new ArrayList<Forge>(2);
+
+    private ForgeCluster(Location chest) {
+        this.chest = chest;
+    }
+
+    Location getChest() {
+        return chest;
+    }
+
+    List<Forge> getMembers() {
+        return members;
+    }
+
+    static ForgeCluster find(Block chest) {
+        return (chest != null) ? byChest.get(chest.getLocation()) : null;
+    }
+
+    /**
+     * Move the forge from its current cluster into the cluster around the
+     * given input chest, if it isn't there already.
+     * @param chest - the forge's input chest. Can be null.
+     * @return the forge's cluster, or null if it has no input chest
+     */
+    static ForgeCluster join(Forge forge, ForgeCluster current, Block chest) {
+        Location loc = (chest != null) ? chest.getLocation() : null;
+        if (current != null && current.chest.equals(loc)) {
+            return current;
+        }
+
+        leave(forge, current);
+        if (loc == null) {
+            return null;
+        }
+
+        ForgeCluster cluster = byChest.get(loc);
+        if (cluster == null) {
+            cluster = new ForgeCluster(loc);
+            byChest.put(loc, cluster);
+        }
+        cluster.members.add(forge);
+        return cluster;
+    }
+
+    static void leave(Forge forge, ForgeCluster current) {
+        if (current != null) {
+            current.members.remove(forge);
+            if (current.members.isEmpty()) {
+                byChest.remove(current.chest);
+            }
+        }
+    }
+
+    /**
+     * How much of the item stack the forge should take into the given
+     * furnace slot: the stack is split among the cluster in proportion to
+     * the room each member has in that slot.
+     * @param cluster - the cluster around the stack's chest. Can be null.
+     */
+    static int share(ForgeCluster cluster, Forge forge, int slot, ItemStack item) {
+        int available = item.getAmount();
+        if (cluster == null) {
+            return available;
+        }
+
+        int room = forge.roomInSlot(slot, item);
+        int totalRoom = room;
+        for (Forge member : cluster.members) {
+            if (member != forge && !member.isUnloaded()) {
+                totalRoom += member.roomInSlot(slot, item);
+            }
+        }
+        return Utils.share(available, room, totalRoom);
+    }
+}
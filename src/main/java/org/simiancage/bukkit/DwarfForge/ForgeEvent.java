@@ -0,0 +1,62 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.event.Event;
+
+
+/**
+ * Base of the events DwarfForge fires about a single forge. Only fired on
+ * the main thread, and only while someone listens.
+ */
+public abstract class ForgeEvent extends Event {
+
+    private final Location location;
+    private final String owner;
+
+    ForgeEvent(Forge forge) {
+        location = forge.getLocation().clone();
+        owner = forge.getOwner();
+    }
+
+    /**
+     * @return location of the forge's furnace
+     */
+    public Location getLocation() {
+        return location.clone();
+    }
+
+    public Block getBlock() {
+        return location.getBlock();
+    }
+
+    /**
+     * @return name of the player who lit the forge, or null if not known
+     */
+    public String getOwner() {
+        return owner;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Fires DwarfForge's public events. Smelted and moved items are added up
+ * per forge and fired as one ForgeActivityEvent at the start of the next
+ * tick. Nothing is recorded, and no event created, while nobody listens.
+ */
+class ForgeEvents implements DwarfForge.Listener, Runnable {
+
+    // Activity since the last batch, by forge.
+    private static HashMap<Forge, ForgeActivityEvent.Activity> pending =
+            new HashMap<Forge, ForgeActivityEvent.Activity>();
+    private static boolean queued = false;
+
+    private static ForgeEvents instance;
+    private DwarfForge main;
+
+    public void onEnable(DwarfForge main) {
+        this.main = main;
+        instance = this;
+    }
+
+    public void onDisable() {
+        instance = null;
+        pending.clear();
+        queued = false;
+    }
+
+    private static boolean listening(HandlerList handlers) {
+        return instance != null && handlers.getRegisteredListeners().length > 0;
+    }
+
+    private static void fire(Event event) {
+        instance.main.getServer().getPluginManager().callEvent(event);
+    }
+
+    static void started(Forge forge) {
+        if (listening(ForgeStartEvent.getHandlerList())) {
+            fire(new ForgeStartEvent(forge));
+        }
+    }
+
+    static void stopped(Forge forge, ForgeStopEvent.Reason reason) {
+        if (listening(ForgeStopEvent.getHandlerList())) {
+            fire(new ForgeStopEvent(forge, reason));
+        }
+    }
+
+    static void jammed(Forge forge, Location chest) {
+        if (listening(ForgeJamEvent.getHandlerList())) {
+            fire(new ForgeJamEvent(forge, chest));
+        }
+    }
+
+    static void smelted(Forge forge, int items) {
+        record(forge, items, 0);
+    }
+
+    static void moved(Forge forge, int items) {
+        record(forge, 0, items);
+    }
+
+    private static void record(Forge forge, int smelted, int moved) {
+        if (smelted + moved <= 0 || !listening(ForgeActivityEvent.getHandlerList())) {
+            return;
+        }
+
+        ForgeActivityEvent.Activity activity = pending.get(forge);
+        if (activity == null) {
+            activity = new ForgeActivityEvent.Activity(forge);
+            pending.put(forge, activity);
+        }
+        activity.add(smelted, moved);
+
+        if (!queued) {
+            queued = true;
+            instance.main.queueTask(instance);
+        }
+    }
+
+    // Fire the batch.
+    public void run() {
+        queued = false;
+        if (instance == null || pending.isEmpty()) {
+            return;
+        }
+        ArrayList<ForgeActivityEvent.Activity> batch =
+                new ArrayList<ForgeActivityEvent.Activity>(pending.values());
+        pending.clear();
+        fire(new ForgeActivityEvent(batch));
+    }
+}
@@ -0,0 +1,262 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * Streams every known forge to a CSV or JSON-lines file: first the active
+ * forges, chunk by chunk, then the forges in the saved active_forges file
+ * that are not active. A few records are written per tick, and only a
+ * copy of the active chunk keys of the world being exported is held in
+ * memory, so exporting a map with tens of thousands of forges doesn't
+ * stall the server. Forges that activate in a chunk already exported are
+ * not included.
+ */
+public class ForgeExport implements Runnable {
+
+    public enum Format {
+        CSV, JSON
+    }
+
+    // Records written per tick.
+    private static final int BATCH = 100;
+
+    private static final int ACTIVE = 0;
+    private static final int SAVED = 1;
+    private static final int DONE = 2;
+
+    private final Log log = Log.getLogger();
+    private final DwarfForge main;
+    private final File file;
+    private final Format format;
+    private final Runnable whenDone;
+
+    private Writer out;
+    private int task = -1;
+    private int phase = ACTIVE;
+    private int count = 0;
+
+    // Where the active forge export is.
+    private Iterator<String> worlds;
+    private String world;
+    private Iterator<Long> chunks = Collections.<Long>emptyList().iterator();
+
+    private DataInputStream saved;
+
+    ForgeExport(DwarfForge main, File file, Format format, Runnable whenDone) {
+        this.main = main;
+        this.file = file;
+        this.format = format;
+        this.whenDone = whenDone;
+    }
+
+    void start() throws IOException {
+        out = new BufferedWriter(new FileWriter(file));
+        if (format == Format.CSV) {
+            out.write("world,x,y,z,state,input,output,smelted,last_update_ms\n");
+        }
+        worlds = Forge.activeWorlds().iterator();
+        task = main.queueRepeatingTask(1, 1, this);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isDone() {
+        return phase == DONE;
+    }
+
+    public void run() {
+        try {
+            int budget = BATCH;
+            while (budget > 0 && phase != DONE) {
+                if (phase == ACTIVE) {
+                    budget -= exportActive();
+                } else {
+                    budget -= exportSaved();
+                }
+            }
+        } catch (IOException e) {
+            log.severe("Could not export forges to " + file + ": " + e);
+            finish();
+        }
+    }
+
+    // Export the next chunk of active forges.
+    private int exportActive() throws IOException {
+        while (!chunks.hasNext()) {
+            if (!worlds.hasNext()) {
+                phase = SAVED;
+                return 0;
+            }
+            world = worlds.next();
+            chunks = Forge.activeChunks(world).iterator();
+        }
+
+        List<Forge> forges = Forge.activeInChunk(world, chunks.next());
+        for (Forge forge : forges) {
+            write(forge.getLocation(), forge);
+        }
+        return Math.max(1, forges.size());
+    }
+
+    // Export the next saved forge, unless it is active and already exported.
+    private int exportSaved() throws IOException {
+        if (saved == null) {
+            File fin = new File(main.getDataFolder(), "active_forges");
+            if (!fin.exists()) {
+                finish();
+                return 0;
+            }
+            saved = new DataInputStream(new FileInputStream(fin));
+        }
+
+        try {
+            String name = saved.readUTF();
+            double x = saved.readDouble();
+            double y = saved.readDouble();
+            double z = saved.readDouble();
+            Location loc = new Location(main.getServer().getWorld(name), x, y, z);
+            if (loc.getWorld() == null) {
+                writeSaved(name, x, y, z);
+            } else if (!Forge.active.containsKey(loc)) {
+                write(loc, null);
+            }
+        } catch (EOFException e) {
+            finish();
+        }
+        return 1;
+    }
+
+    void cancel() {
+        if (phase != DONE) {
+            log.warning("Forge export to " + file + " cancelled after " + count + " forges.");
+            finish();
+        }
+    }
+
+    private void finish() {
+        phase = DONE;
+        if (task != -1) {
+            main.cancelTask(task);
+            task = -1;
+        }
+        try {
+            out.close();
+            if (saved != null) {
+                saved.close();
+            }
+        } catch (IOException e) {
+            log.severe("Could not close forge export " + file + ": " + e);
+        }
+        main.exportDone(this);
+        if (whenDone != null) {
+            whenDone.run();
+        }
+    }
+
+    private void write(Location loc, Forge forge) throws IOException {
+        String state = "saved";
+        Block input = null;
+        Block output = null;
+        long smelted = 0;
+        long lastUpdate = 0;
+        if (forge != null) {
+            smelted = forge.getItemsSmelted();
+            lastUpdate = forge.getLastUpdate();
+            if (forge.isUnloaded()) {
+                // Resolving chests would load the chunk.
+                state = "unloaded";
+            } else {
+                state = forge.isParked() ? "blocked" : (forge.isSleeping() ? "waiting" : "active");
+                if (forge.isValid()) {
+                    input = forge.getInputChest();
+                    output = forge.getOutputChest();
+                }
+            }
+        }
+        record(loc.getWorld().getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
+                state, input, output, smelted, lastUpdate);
+    }
+
+    // A saved forge in a world that is not loaded.
+    private void writeSaved(String name, double x, double y, double z) throws IOException {
+        record(name, (int) Math.floor(x), (int) Math.floor(y), (int) Math.floor(z),
+                "saved", null, null, 0, 0);
+    }
+
+    private void record(String name, int x, int y, int z, String state,
+                        Block input, Block output, long smelted, long lastUpdate) throws IOException {
+        if (format == Format.CSV) {
+            out.write(csv(name) + "," + x + "," + y + "," + z + "," + state + ","
+                    + chest(input, " ") + "," + chest(output, " ") + ","
+                    + smelted + "," + lastUpdate + "\n");
+        } else {
+            out.write("{\"world\":" + json(name) + ",\"x\":" + x + ",\"y\":" + y + ",\"z\":" + z
+                    + ",\"state\":\"" + state + "\""
+                    + ",\"input\":" + ((input != null) ? "[" + chest(input, ",") + "]" : "null")
+                    + ",\"output\":" + ((output != null) ? "[" + chest(output, ",") + "]" : "null")
+                    + ",\"smelted\":" + smelted + ",\"lastUpdate\":" + lastUpdate + "}\n");
+        }
+        count += 1;
+    }
+
+    private static String chest(Block chest, String separator) {
+        if (chest == null) {
+            return "";
+        }
+        return chest.getX() + separator + chest.getY() + separator + chest.getZ();
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
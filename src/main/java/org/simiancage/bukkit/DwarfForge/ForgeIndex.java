@@ -0,0 +1,193 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.plugin.ServicePriority;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Answers ForgeQuery from the active forges' chunk index. Boxes are looked
+ * up chunk by chunk, or by going over the world's indexed chunks when the
+ * box covers more chunks than have forges.
+ */
+class ForgeIndex implements ForgeQuery, DwarfForge.Listener {
+
+    private static final int[] NONE = new int[0];
+
+    private DwarfForge main;
+
+    public void onEnable(DwarfForge main) {
+        this.main = main;
+        main.getServer().getServicesManager().register(ForgeQuery.class, this, main, ServicePriority.Normal);
+    }
+
+    public void onDisable() {
+        main.getServer().getServicesManager().unregister(ForgeQuery.class, this);
+    }
+
+    public int[] inBox(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        HashMap<Long, ArrayList<Forge>> chunks = Forge.activeByChunk(world.getName());
+        if (chunks == null || minX > maxX || minY > maxY || minZ > maxZ) {
+            return NONE;
+        }
+
+        Result result = new Result();
+        int minChunkX = minX >> 4;
+        int minChunkZ = minZ >> 4;
+        int maxChunkX = maxX >> 4;
+        int maxChunkZ = maxZ >> 4;
+        long area = (long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+        if (area <= chunks.size()) {
+            for (int chunkX = minChunkX; chunkX <= maxChunkX; ++chunkX) {
+                for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; ++chunkZ) {
+                    ArrayList<Forge> forges = chunks.get(Utils.chunkKey(chunkX, chunkZ));
+                    if (forges != null) {
+                        result.addInBox(forges, minX, minY, minZ, maxX, maxY, maxZ);
+                    }
+                }
+            }
+        } else {
+            for (Map.Entry<Long, ArrayList<Forge>> entry : chunks.entrySet()) {
+                long key = entry.getKey();
+                int chunkX = (int) (key >> 32);
+                int chunkZ = (int) key;
+                if (chunkX >= minChunkX && chunkX <= maxChunkX && chunkZ >= minChunkZ && chunkZ <= maxChunkZ) {
+                    result.addInBox(entry.getValue(), minX, minY, minZ, maxX, maxY, maxZ);
+                }
+            }
+        }
+        return result.toArray();
+    }
+
+    public int[] inChunk(World world, int chunkX, int chunkZ) {
+        HashMap<Long, ArrayList<Forge>> chunks = Forge.activeByChunk(world.getName());
+        ArrayList<Forge> forges = (chunks != null) ? chunks.get(Utils.chunkKey(chunkX, chunkZ)) : null;
+        if (forges == null) {
+            return NONE;
+        }
+
+        Result result = new Result();
+        for (Forge forge : forges) {
+            result.add(forge.getLocation());
+        }
+        return result.toArray();
+    }
+
+    public int[] within(Location center, double radius) {
+        if (radius < 0) {
+            return NONE;
+        }
+
+        // Search the bounding box, then drop the corners.
+        int reach = (int) Math.ceil(radius);
+        int[] box = inBox(center.getWorld(),
+                center.getBlockX() - reach, center.getBlockY() - reach, center.getBlockZ() - reach,
+                center.getBlockX() + reach, center.getBlockY() + reach, center.getBlockZ() + reach);
+
+        double limit = radius * radius;
+        int kept = 0;
+        for (int i = 0; i < box.length; i += 3) {
+            double dx = box[i] + 0.5 - center.getX();
+            double dy = box[i + 1] + 0.5 - center.getY();
+            double dz = box[i + 2] + 0.5 - center.getZ();
+            if (dx * dx + dy * dy + dz * dz <= limit) {
+                box[kept] = box[i];
+                box[kept + 1] = box[i + 1];
+                box[kept + 2] = box[i + 2];
+                kept += 3;
+            }
+        }
+        return (kept == box.length) ? box : copyOf(box, kept);
+    }
+
+    public int count(World world) {
+        HashMap<Long, ArrayList<Forge>> chunks = Forge.activeByChunk(world.getName());
+        if (chunks == null) {
+            return 0;
+        }
+        int count = 0;
+        for (ArrayList<Forge> forges : chunks.values()) {
+            count += forges.size();
+        }
+        return count;
+    }
+
+    public boolean isActive(World world, int x, int y, int z) {
+        HashMap<Long, ArrayList<Forge>> chunks = Forge.activeByChunk(world.getName());
+        ArrayList<Forge> forges = (chunks != null) ? chunks.get(Utils.chunkKey(x >> 4, z >> 4)) : null;
+        if (forges != null) {
+            for (Forge forge : forges) {
+                Location loc = forge.getLocation();
+                if (loc.getBlockX() == x && loc.getBlockY() == y && loc.getBlockZ() == z) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    // Growable array of coordinate triples.
+    private static class Result {
+        private int[] coords = new int[3 * 8];
+        private int size = 0;
+
+        void add(Location loc) {
+            if (size + 3 > coords.length) {
+                coords = copyOf(coords, 2 * coords.length);
+            }
+            coords[size] = loc.getBlockX();
+            coords[size + 1] = loc.getBlockY();
+            coords[size + 2] = loc.getBlockZ();
+            size += 3;
+        }
+
+        void addInBox(ArrayList<Forge> forges, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            for (Forge forge : forges) {
+                Location loc = forge.getLocation();
+                int x = loc.getBlockX();
+                int y = loc.getBlockY();
+                int z = loc.getBlockZ();
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                    add(loc);
+                }
+            }
+        }
+
+        int[] toArray() {
+            return (size == 0) ? NONE : copyOf(coords, size);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+
+/**
+ * Finds active forges by area, from DwarfForge's own index rather than by
+ * looking at blocks. Get it from the services manager:
+ * <pre>
+ * ForgeQuery query = Bukkit.getServicesManager().load(ForgeQuery.class);
+ * </pre>
+ * Results are the forges' furnace coordinates, packed into one array as
+ * x, y, z triples: forge i is at (r[3*i], r[3*i+1], r[3*i+2]). The order is
+ * unspecified. Only call from the main thread.
+ */
+public interface ForgeQuery {
+
+    /**
+     * @return active forges inside the box; the bounds are inclusive
+     */
+    int[] inBox(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ);
+
+    /**
+     * @return active forges in the chunk; doesn't load the chunk
+     */
+    int[] inChunk(World world, int chunkX, int chunkZ);
+
+    /**
+     * @return active forges whose furnace is at most radius blocks from center
+     */
+    int[] within(Location center, double radius);
+
+    /**
+     * @return how many forges are active in the world
+     */
+    int count(World world);
+
+    /**
+     * @return whether there is an active forge at the block
+     */
+    boolean isActive(World world, int x, int y, int z);
+}
@@ -0,0 +1,202 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+/**
+ * Limits on active forges per chunk, world and player. A forge that would
+ * go over a limit waits in line instead of activating; whenever a forge
+ * deactivates, waiting forges are admitted as far as the limits allow.
+ * The line is fair between players: admission takes turns between the
+ * players with waiting forges, in the order they first queued. Waiting
+ * forges in unloaded chunks keep their place until the chunk loads.
+ */
+class ForgeQuota {
+
+    // Forges activated without a player, e.g. restored from the save file.
+    private static final String NOBODY = "";
+
+    private static HashMap<String, Integer> byWorld = new HashMap<String, Integer>();
+    private static HashMap<String, Integer> byOwner = new HashMap<String, Integer>();
+
+    // Waiting forges, per owner and by location.
+    private static LinkedHashMap<String, LinkedList<Forge>> waiting = new LinkedHashMap<String, LinkedList<Forge>>();
+    private static HashMap<Location, Forge> waitingAt = new HashMap<Location, Forge>();
+    private static boolean admitQueued = false;
+
+    static boolean hasRoom(Forge forge, String owner) {
+        Location loc = forge.getLocation();
+        int limit = Config.getMaxForgesPerChunk();
+        if (limit > 0 && Forge.activeInChunk(loc.getWorld().getName(),
+                Utils.chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4)).size() >= limit) {
+            return false;
+        }
+        limit = Config.getMaxForgesPerWorld();
+        if (limit > 0 && count(byWorld, loc.getWorld().getName()) >= limit) {
+            return false;
+        }
+        limit = Config.getMaxForgesPerPlayer();
+        return limit <= 0 || owner == null || count(byOwner, owner) < limit;
+    }
+
+    // An active forge was registered.
+    static void added(Forge forge, String owner) {
+        add(byWorld, forge.getLocation().getWorld().getName(), 1);
+        if (owner != null) {
+            add(byOwner, owner, 1);
+        }
+    }
+
+    // An active forge was unregistered; there may be room for waiting forges.
+    static void removed(Forge forge, String owner) {
+        add(byWorld, forge.getLocation().getWorld().getName(), -1);
+        if (owner != null) {
+            add(byOwner, owner, -1);
+        }
+        admitSoon();
+    }
+
+    // Admit waiting forges once the current event or update is done.
+    static void admitSoon() {
+        if (!waitingAt.isEmpty() && !admitQueued) {
+            admitQueued = true;
+            DwarfForge.main.queueTask(new Runnable() {
+                public void run() {
+                    admitQueued = false;
+                    admit();
+                }
+            });
+        }
+    }
+
+    static void enqueue(Forge forge, String owner) {
+        String key = (owner != null) ? owner : NOBODY;
+        LinkedList<Forge> line = waiting.get(key);
+        if (line == null) {
+            line = new LinkedList<Forge>();
+            waiting.put(key, line);
+        }
+        line.add(forge);
+        waitingAt.put(forge.getLocation(), forge);
+    }
+
+    static void dequeue(Forge forge, String owner) {
+        String key = (owner != null) ? owner : NOBODY;
+        LinkedList<Forge> line = waiting.get(key);
+        if (line != null && line.remove(forge)) {
+            waitingAt.remove(forge.getLocation());
+            if (line.isEmpty()) {
+                waiting.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Admit waiting forges while there is room, one per owner in turn.
+     * Owners that got a turn move to the back of the line.
+     */
+    static void admit() {
+        boolean admitted = true;
+        while (admitted && !waitingAt.isEmpty()) {
+            admitted = false;
+            ArrayList<String> served = new ArrayList<String>();
+            for (Map.Entry<String, LinkedList<Forge>> entry : waiting.entrySet()) {
+                Iterator<Forge> it = entry.getValue().iterator();
+                while (it.hasNext()) {
+                    Forge forge = it.next();
+                    if (!forge.isLoaded()) {
+                        continue;
+                    }
+                    if (!forge.isValid()) {
+                        // Gone while waiting.
+                        it.remove();
+                        waitingAt.remove(forge.getLocation());
+                        continue;
+                    }
+                    if (hasRoom(forge, forge.getOwner())) {
+                        it.remove();
+                        waitingAt.remove(forge.getLocation());
+                        forge.admit();
+                        served.add(entry.getKey());
+                        admitted = true;
+                        break;
+                    }
+                }
+            }
+            for (String owner : served) {
+                LinkedList<Forge> line = waiting.remove(owner);
+                if (!line.isEmpty()) {
+                    waiting.put(owner, line);
+                }
+            }
+            // Drop owners whose forges all went away.
+            Iterator<LinkedList<Forge>> lines = waiting.values().iterator();
+            while (lines.hasNext()) {
+                if (lines.next().isEmpty()) {
+                    lines.remove();
+                }
+            }
+        }
+    }
+
+    static Collection<Forge> getWaitingForges() {
+        return waitingAt.values();
+    }
+
+    static Forge findWaiting(Location loc) {
+        return waitingAt.get(loc);
+    }
+
+    static int getWaiting() {
+        return waitingAt.size();
+    }
+
+    static int getWaitingOwners() {
+        return waiting.size();
+    }
+
+    private static int count(HashMap<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return (count != null) ? count : 0;
+    }
+
+    private static void add(HashMap<String, Integer> counts, String key, int delta) {
+        int count = count(counts, key) + delta;
+        if (count > 0) {
+            counts.put(key, count);
+        } else {
+            counts.remove(key);
+        }
+    }
+}
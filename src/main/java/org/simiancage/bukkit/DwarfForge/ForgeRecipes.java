@@ -0,0 +1,139 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.inventory.FurnaceRecipe;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * The forge recipe table from the recipes section of the config. Each
+ * recipe names an input material, and optionally its result, result
+ * amount and cook time in ticks. Results are registered with the server
+ * as furnace recipes, so furnaces and virtual forges both smelt them; cook
+ * times are compiled into an array indexed by material id, which the forge
+ * consults when it loads raw material.
+ */
+class ForgeRecipes {
+
+    static final int NONE = -1;
+
+    private static final String KEY_RESULT = "result";
+    private static final String KEY_AMOUNT = "amount";
+    private static final String KEY_COOK_TICKS = "cook-ticks";
+
+    // Configured recipes, in config order: { input, result, amount, cook ticks } ids.
+    private static ArrayList<int[]> recipes = new ArrayList<int[]>();
+
+    // Cook ticks by input material id; NONE for the global cooking time.
+    private static int[] cookTicks = new int[0];
+
+    private static final Log log = Log.getLogger();
+
+    static void load(ConfigurationSection section) {
+        recipes.clear();
+        int maxId = 0;
+        if (section != null) {
+            for (String key : section.getKeys(false)) {
+                Material input = Material.matchMaterial(key);
+                ConfigurationSection recipe = section.getConfigurationSection(key);
+                if (input == null || recipe == null) {
+                    log.error("Skipping recipe for unknown material " + key);
+                    continue;
+                }
+
+                Material result = null;
+                if (recipe.contains(KEY_RESULT)) {
+                    result = Material.matchMaterial(recipe.getString(KEY_RESULT));
+                    if (result == null) {
+                        log.error("Skipping recipe for " + key + ": unknown result " + recipe.getString(KEY_RESULT));
+                        continue;
+                    }
+                } else if (!Utils.canCook(input)) {
+                    log.error("Skipping recipe for " + key + ": it needs a result");
+                    continue;
+                }
+
+                int amount = Math.max(1, recipe.getInt(KEY_AMOUNT, 1));
+                int ticks = recipe.getInt(KEY_COOK_TICKS, NONE);
+                if (ticks != NONE && ticks < 1) {
+                    log.error(KEY_COOK_TICKS + " for " + key + " is too low! Setting to 1");
+                    ticks = 1;
+                } else if (ticks > Config.MAX_COOK_TICKS) {
+                    log.error(KEY_COOK_TICKS + " for " + key + " is too high! Setting to " + Config.MAX_COOK_TICKS);
+                    ticks = Config.MAX_COOK_TICKS;
+                }
+
+                recipes.add(new int[]{input.getId(), (result != null) ? result.getId() : NONE, amount, ticks});
+                maxId = Math.max(maxId, input.getId());
+                log.debug("recipe " + key, ((result != null) ? result.name() : "default") + " x" + amount
+                        + ", " + ((ticks != NONE) ? ticks + " ticks" : "default time"));
+            }
+        }
+
+        int[] ticks = new int[maxId + 1];
+        Arrays.fill(ticks, NONE);
+        for (int[] recipe : recipes) {
+            ticks[recipe[0]] = recipe[3];
+            if (recipe[1] != NONE) {
+                // Replaces any vanilla recipe for the same input.
+                Bukkit.addRecipe(new FurnaceRecipe(
+                        new ItemStack(Material.getMaterial(recipe[1]), recipe[2]), Material.getMaterial(recipe[0])));
+            }
+        }
+        cookTicks = ticks;
+        Utils.internals().recipesChanged();
+    }
+
+    // Cook ticks configured for the input, or NONE.
+    static int getCookTicks(Material input) {
+        int id = input.getId();
+        return (id < cookTicks.length) ? cookTicks[id] : NONE;
+    }
+
+    static void write(PrintWriter stream, String key) {
+        if (recipes.isEmpty()) {
+            stream.println(key + ": {}");
+            return;
+        }
+        stream.println(key + ":");
+        for (int[] recipe : recipes) {
+            stream.println("    " + Material.getMaterial(recipe[0]).name() + ":");
+            if (recipe[1] != NONE) {
+                stream.println("        " + KEY_RESULT + ": " + Material.getMaterial(recipe[1]).name());
+                stream.println("        " + KEY_AMOUNT + ": " + recipe[2]);
+            }
+            if (recipe[3] != NONE) {
+                stream.println("        " + KEY_COOK_TICKS + ": " + recipe[3]);
+            }
+        }
+    }
+}
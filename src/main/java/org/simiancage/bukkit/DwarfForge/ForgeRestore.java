@@ -0,0 +1,162 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Checks the forges saved as active before they are restored, so that they
+ * don't all have to be looked at on the first tick. The main thread takes
+ * a snapshot of each loaded chunk with saved forges; worker threads check
+ * the forges against the snapshots, one chunk per task. Forges in unloaded
+ * chunks aren't checked, so their chunks aren't loaded; they are checked
+ * by their first update once their chunk loads, as before.
+ */
+class ForgeRestore {
+
+    private static final int MAX_THREADS = 4;
+
+    private static final int FURNACE = Material.FURNACE.getId();
+    private static final int BURNING_FURNACE = Material.BURNING_FURNACE.getId();
+    private static final int LAVA = Material.LAVA.getId();
+    private static final int STATIONARY_LAVA = Material.STATIONARY_LAVA.getId();
+
+    private static final Log log = Log.getLogger();
+
+    private int dropped = 0;
+
+    /**
+     * @return the saved forges that may be restored: those that are still
+     * forges, and those in unloaded chunks
+     */
+    List<Location> check(List<Location> saved) {
+        ArrayList<Location> restore = new ArrayList<Location>(saved.size());
+        HashMap<World, HashMap<Long, ArrayList<Location>>> byChunk =
+                new HashMap<World, HashMap<Long, ArrayList<Location>>>();
+        for (Location loc : saved) {
+            int chunkX = loc.getBlockX() >> 4;
+            int chunkZ = loc.getBlockZ() >> 4;
+            if (!loc.getWorld().isChunkLoaded(chunkX, chunkZ)) {
+                restore.add(loc);
+                continue;
+            }
+
+            HashMap<Long, ArrayList<Location>> chunks = byChunk.get(loc.getWorld());
+            if (chunks == null) {
+                chunks = new HashMap<Long, ArrayList<Location>>();
+                byChunk.put(loc.getWorld(), chunks);
+            }
+            Long key = Utils.chunkKey(chunkX, chunkZ);
+            ArrayList<Location> forges = chunks.get(key);
+            if (forges == null) {
+                forges = new ArrayList<Location>();
+                chunks.put(key, forges);
+            }
+            forges.add(loc);
+        }
+
+        // Snapshots must be taken on the main thread.
+        final int stack = Config.getMaxStackVertical();
+        ArrayList<Callable<List<Location>>> tasks = new ArrayList<Callable<List<Location>>>();
+        for (Map.Entry<World, HashMap<Long, ArrayList<Location>>> world : byChunk.entrySet()) {
+            for (final ArrayList<Location> forges : world.getValue().values()) {
+                Location first = forges.get(0);
+                final ChunkSnapshot snapshot = world.getKey()
+                        .getChunkAt(first.getBlockX() >> 4, first.getBlockZ() >> 4)
+                        .getChunkSnapshot(false, false, false);
+                tasks.add(new Callable<List<Location>>() {
+                    public List<Location> call() {
+                        ArrayList<Location> valid = new ArrayList<Location>(forges.size());
+                        for (Location loc : forges) {
+                            if (isValid(snapshot, loc.getBlockX() & 15, loc.getBlockY(), loc.getBlockZ() & 15, stack)) {
+                                valid.add(loc);
+                            }
+                        }
+                        return valid;
+                    }
+                });
+            }
+        }
+        if (tasks.isEmpty()) {
+            return restore;
+        }
+
+        int threads = Math.min(MAX_THREADS, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DwarfForge restore");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // The server isn't ticking yet; wait for the checks.
+            for (Future<List<Location>> result : pool.invokeAll(tasks)) {
+                restore.addAll(result.get());
+            }
+            dropped = saved.size() - restore.size();
+        } catch (Exception e) {
+            // Restore them all unchecked, as before; updates weed them out.
+            log.warning("Could not check saved forges, restoring them unchecked: " + e);
+            return saved;
+        } finally {
+            pool.shutdownNow();
+        }
+        return restore;
+    }
+
+    // Saved forges that are no longer forges.
+    int getDropped() {
+        return dropped;
+    }
+
+    // Same as Forge.isValid, on a chunk snapshot.
+    static boolean isValid(ChunkSnapshot snapshot, int x, int y, int z, int stack) {
+        for (; stack > 0 && y > 0; --stack, --y) {
+            int type = snapshot.getBlockTypeId(x, y, z);
+            if (type != FURNACE && type != BURNING_FURNACE) {
+                return false;
+            }
+            int below = snapshot.getBlockTypeId(x, y - 1, z);
+            if (below == LAVA || below == STATIONARY_LAVA) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
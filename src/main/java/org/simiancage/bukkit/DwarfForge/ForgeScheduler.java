@@ -0,0 +1,281 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+
+/**
+ * Schedules the repeating forge updates. Forges are partitioned by world
+ * and region (32x32 chunks, as in the region files); every partition has
+ * its own queue and runs at most a budget of updates per tick, so a big
+ * forge array delays only its own region.
+ *
+ * A {@link Driver} decides when partitions tick. The classic driver
+ * ticks every partition on the main thread from a single Bukkit task.
+ * Partitions must all tick on the main thread: forge updates share static
+ * state (the active forges and their chunk index, clusters, chest
+ * watches, quotas and stats), and scheduling a forge may add a partition.
+ * Partitions left without forges are dropped again.
+ */
+class ForgeScheduler {
+
+    // Blocks to regions: 512 blocks, or 32 chunks.
+    private static final int REGION_SHIFT = 9;
+
+    interface Driver {
+        void start(ForgeScheduler scheduler);
+
+        void stop();
+    }
+
+    /**
+     * Ticks all partitions on the main thread, from one repeating task.
+     */
+    static class BukkitDriver implements Driver {
+        private final DwarfForge main;
+        private int task = -1;
+
+        BukkitDriver(DwarfForge main) {
+            this.main = main;
+        }
+
+        public void start(final ForgeScheduler scheduler) {
+            task = main.queueRepeatingTask(1, 1, new Runnable() {
+                public void run() {
+                    scheduler.tick();
+                }
+            });
+        }
+
+        public void stop() {
+            if (task != -1) {
+                main.cancelTask(task);
+                task = -1;
+            }
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final Forge forge;
+        long due;
+        boolean cancelled = false;
+
+        Entry(Forge forge, long due) {
+            this.forge = forge;
+            this.due = due;
+        }
+
+        public int compareTo(Entry other) {
+            return (due < other.due) ? -1 : ((due == other.due) ? 0 : 1);
+        }
+    }
+
+    static class Partition {
+        final String world;
+        final int regionX;
+        final int regionZ;
+
+        private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+        private final HashMap<Forge, Entry> entries = new HashMap<Forge, Entry>();
+        private long currentTick = 0;
+
+        Partition(String world, int regionX, int regionZ) {
+            this.world = world;
+            this.regionX = regionX;
+            this.regionZ = regionZ;
+        }
+
+        int getScheduled() {
+            return entries.size();
+        }
+    }
+
+    private final Log log = Log.getLogger();
+    private final Driver driver;
+    private final HashMap<String, HashMap<Long, Partition>> byWorld =
+            new HashMap<String, HashMap<Long, Partition>>();
+    private final ArrayList<Partition> partitions = new ArrayList<Partition>();
+
+    ForgeScheduler(Driver driver) {
+        this.driver = driver;
+    }
+
+    void start() {
+        driver.start(this);
+    }
+
+    void stop() {
+        driver.stop();
+    }
+
+    /**
+     * Run forge.run() after delay ticks, then again after every
+     * forge.nextDelay() ticks until that is zero or the forge is cancelled.
+     * Replaces any earlier schedule of the forge.
+     */
+    void schedule(Forge forge, long delay) {
+        Partition partition = partitionOf(forge.getLocation(), true);
+        Entry old = partition.entries.get(forge);
+        if (old != null) {
+            old.cancelled = true;
+        }
+        Entry entry = new Entry(forge, partition.currentTick + delay);
+        partition.entries.put(forge, entry);
+        partition.queue.add(entry);
+    }
+
+    /**
+     * Schedule the forge's next update from forge.nextDelay(), as after
+     * one of its regular updates; used when an update finishes outside
+     * the scheduler.
+     */
+    void reschedule(Forge forge) {
+        long delay = forge.nextDelay();
+        if (delay > 0) {
+            schedule(forge, Forge.slowed(delay, LagWatchdog.getSlowdown()));
+        } else {
+            cancel(forge);
+        }
+    }
+
+    void cancel(Forge forge) {
+        Partition partition = partitionOf(forge.getLocation(), false);
+        if (partition != null) {
+            Entry entry = partition.entries.remove(forge);
+            if (entry != null) {
+                entry.cancelled = true;
+            }
+        }
+    }
+
+    boolean isScheduled(Forge forge) {
+        Partition partition = partitionOf(forge.getLocation(), false);
+        return partition != null && partition.entries.containsKey(forge);
+    }
+
+    /**
+     * Ticks until the forge's next update, or -1 if it is not scheduled.
+     */
+    long getDelay(Forge forge) {
+        Partition partition = partitionOf(forge.getLocation(), false);
+        Entry entry = (partition != null) ? partition.entries.get(forge) : null;
+        return (entry != null) ? Math.max(0, entry.due - partition.currentTick) : -1;
+    }
+
+    ArrayList<Partition> getPartitions() {
+        return partitions;
+    }
+
+    // Tick every partition; used by the classic driver.
+    void tick() {
+        // Index loop: forge updates may add partitions.
+        for (int i = 0; i < partitions.size(); ++i) {
+            Partition partition = partitions.get(i);
+            tick(partition);
+            if (partition.entries.isEmpty()) {
+                drop(partition);
+                partitions.remove(i--);
+            }
+        }
+    }
+
+    // Forget an empty partition; scheduling there again makes a new one.
+    private void drop(Partition partition) {
+        HashMap<Long, Partition> regions = byWorld.get(partition.world);
+        if (regions != null) {
+            regions.remove(Utils.chunkKey(partition.regionX, partition.regionZ));
+            if (regions.isEmpty()) {
+                byWorld.remove(partition.world);
+            }
+        }
+    }
+
+    /**
+     * Run the partition's due updates, up to the per-tick budget. Updates
+     * over budget stay due and run on a later tick. While the server lags,
+     * the budget shrinks and intervals grow by the watchdog's slowdown, up
+     * to Forge.MAX_DELAY.
+     */
+    void tick(Partition partition) {
+        partition.currentTick += 1;
+        int slowdown = LagWatchdog.getSlowdown();
+        int budget = Math.max(1, Config.getUpdatesPerTick() / slowdown);
+        while (budget > 0) {
+            Entry entry = partition.queue.peek();
+            if (entry == null || entry.due > partition.currentTick) {
+                break;
+            }
+            partition.queue.poll();
+            if (entry.cancelled) {
+                continue;
+            }
+
+            budget -= 1;
+            try {
+                entry.forge.run();
+            } catch (Throwable e) {
+                log.severe("Forge at " + entry.forge.getLocation() + " failed to update", e);
+            }
+
+            // The forge may have cancelled or rescheduled itself.
+            if (!entry.cancelled) {
+                long delay = entry.forge.nextDelay();
+                if (delay > 0) {
+                    entry.due = partition.currentTick + Forge.slowed(delay, slowdown);
+                    partition.queue.add(entry);
+                } else {
+                    partition.entries.remove(entry.forge);
+                }
+            }
+        }
+    }
+
+    private Partition partitionOf(Location loc, boolean create) {
+        String world = loc.getWorld().getName();
+        int regionX = loc.getBlockX() >> REGION_SHIFT;
+        int regionZ = loc.getBlockZ() >> REGION_SHIFT;
+
+        HashMap<Long, Partition> regions = byWorld.get(world);
+        if (regions == null) {
+            if (!create) {
+                return null;
+            }
+            regions = new HashMap<Long, Partition>();
+            byWorld.put(world, regions);
+        }
+        Long key = Utils.chunkKey(regionX, regionZ);
+        Partition partition = regions.get(key);
+        if (partition == null && create) {
+            partition = new Partition(world, regionX, regionZ);
+            regions.put(key, partition);
+            partitions.add(partition);
+        }
+        return partition;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Lightweight timings of Forge.update(), for the admin commands. Keeps a
+ * running count and total, the most recent samples for percentiles, and,
+ * while a profile is running, the cost per forge.
+ */
+class ForgeStats {
+
+    private static final int SAMPLES = 1024;
+
+    private static long since = System.currentTimeMillis();
+    private static long updates = 0;
+    private static long totalNanos = 0;
+    private static long[] samples = new long[SAMPLES];
+    private static int nextSample = 0;
+
+    // Time spent on updates since the lag watchdog last asked.
+    private static long tickNanos = 0;
+
+    // Per-forge cost while profiling: { total nanos, updates }.
+    private static HashMap<Location, long[]> profile = null;
+
+    static void recordUpdate(Forge forge, long nanos) {
+        updates += 1;
+        totalNanos += nanos;
+        tickNanos += nanos;
+        samples[nextSample] = nanos;
+        nextSample = (nextSample + 1) % SAMPLES;
+
+        if (profile != null) {
+            long[] cost = profile.get(forge.getLocation());
+            if (cost == null) {
+                cost = new long[2];
+                profile.put(forge.getLocation(), cost);
+            }
+            cost[0] += nanos;
+            cost[1] += 1;
+        }
+    }
+
+    static void reset() {
+        since = System.currentTimeMillis();
+        updates = 0;
+        totalNanos = 0;
+        Arrays.fill(samples, 0);
+        nextSample = 0;
+    }
+
+    // Time spent on updates since the last call.
+    static long drainTickNanos() {
+        long nanos = tickNanos;
+        tickNanos = 0;
+        return nanos;
+    }
+
+    static long getUpdates() {
+        return updates;
+    }
+
+    // Updates per second since the last reset.
+    static double getUpdateRate() {
+        long elapsed = System.currentTimeMillis() - since;
+        return (elapsed > 0) ? updates * 1000.0 / elapsed : 0;
+    }
+
+    static double getAverageMillis() {
+        return (updates > 0) ? totalNanos / 1e6 / updates : 0;
+    }
+
+    // Percentile of the most recent samples, in milliseconds.
+    static double getPercentileMillis(double percentile) {
+        int count = (int) Math.min(updates, SAMPLES);
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = new long[count];
+        System.arraycopy(samples, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    static boolean isProfiling() {
+        return profile != null;
+    }
+
+    static void startProfile() {
+        profile = new HashMap<Location, long[]>();
+    }
+
+    /**
+     * Stop profiling.
+     * @return the most expensive forges, most expensive first
+     */
+    static List<Map.Entry<Location, long[]>> stopProfile(int limit) {
+        if (profile == null) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<Location, long[]>> entries =
+                new ArrayList<Map.Entry<Location, long[]>>(profile.entrySet());
+        profile = null;
+
+        Collections.sort(entries, new Comparator<Map.Entry<Location, long[]>>() {
+            public int compare(Map.Entry<Location, long[]> a, Map.Entry<Location, long[]> b) {
+                return Long.valueOf(b.getValue()[0]).compareTo(a.getValue()[0]);
+            }
+        });
+        return entries.subList(0, Math.min(limit, entries.size()));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+
+/**
+ * Checks active forges against the world, a few per tick. Blocks changed
+ * by WorldEdit, explosions or other plugins fire none of the events
+ * DwarfForge listens to; the sweeper finds forges that are no longer valid
+ * and shuts them down, and restarts valid ones whose updates were lost.
+ * Forges rotate through a queue as they are checked, so every forge is
+ * checked once per pass without ever scanning the whole registry at once.
+ * Forges in unloaded chunks are skipped, as checking them would load them.
+ * Storage pools are checked the same way, for chests that are gone.
+ */
+class ForgeSweeper implements DwarfForge.Listener, Runnable {
+
+    // Active forges, in the order they are due for a check.
+    private static LinkedHashSet<Forge> queue = new LinkedHashSet<Forge>();
+
+    private static long pruned = 0;
+    private static long restarted = 0;
+
+    private final Log log = Log.getLogger();
+    private DwarfForge main;
+    private int task = -1;
+
+    // Progress of the current pass.
+    private int passSize = 0;
+    private int checked = 0;
+    private int passPruned = 0;
+
+    public void onEnable(DwarfForge main) {
+        this.main = main;
+        // Forges restored before the sweeper started.
+        queue.addAll(Forge.active.values());
+        task = main.queueRepeatingTask(1, 1, this);
+    }
+
+    public void onDisable() {
+        if (task != -1) {
+            main.cancelTask(task);
+            task = -1;
+        }
+        queue.clear();
+    }
+
+    static void added(Forge forge) {
+        queue.add(forge);
+    }
+
+    static void removed(Forge forge) {
+        queue.remove(forge);
+    }
+
+    static long getPruned() {
+        return pruned;
+    }
+
+    static long getRestarted() {
+        return restarted;
+    }
+
+    public void run() {
+        StoragePool.sweep(Config.getSweepPerTick());
+
+        // An empty pass ends only once, not on every tick until there are
+        // forges again.
+        if (checked >= passSize && (passSize > 0 || !queue.isEmpty())) {
+            endPass();
+        }
+
+        int budget = Math.min(Config.getSweepPerTick(), queue.size());
+        for (int i = 0; i < budget; ++i) {
+            Iterator<Forge> it = queue.iterator();
+            Forge forge = it.next();
+            it.remove();
+            check(forge);
+            // Pruned forges removed themselves from the registry.
+            if (forge.isActive()) {
+                queue.add(forge);
+            }
+            checked += 1;
+        }
+    }
+
+    private void check(Forge forge) {
+        if (forge.isUnloaded() || !forge.isLoaded()) {
+            return;
+        }
+        if (forge.prune()) {
+            pruned += 1;
+            passPruned += 1;
+        } else if (forge.restartLost()) {
+            restarted += 1;
+        }
+    }
+
+    private void endPass() {
+        if (passPruned > 0) {
+            log.info("Integrity sweep shut down " + passPruned + " forges that are no longer valid.");
+        }
+        passSize = queue.size();
+        checked = 0;
+        passPruned = 0;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventException;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.EventExecutor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+
+/**
+ * Emits Java Flight Recorder events for forge activity: update passes,
+ * chest lookups, persistence and listener handling. Each event type is
+ * switched on and off through the usual JFR settings. When a type is not
+ * being recorded, or the JVM has no Flight Recorder, every call here is a
+ * single field check.
+ *
+ * All methods must be called from the main thread.
+ */
+class ForgeTrace {
+
+    // Steps of an update pass. A step lasts until the next one starts.
+    static final int VALIDATE = 0;
+    static final int PRODUCT = 1;
+    static final int RAW_MATERIAL = 2;
+    static final int FUEL = 3;
+    static final int BULK_SMELT = 4;
+    static final int FURNACE = 5;
+    private static final int STEPS = 6;
+
+    static final boolean AVAILABLE = register();
+
+    // The update pass being traced, if any.
+    private static Object update = null;
+    private static long[] laps = new long[STEPS];
+    private static int step;
+    private static long stepStart;
+    private static int itemsMoved;
+
+    private static boolean register() {
+        try {
+            return JfrTrace.register();
+        } catch (Throwable e) {
+            // No jdk.jfr on this JVM.
+            return false;
+        }
+    }
+
+    static void beginUpdate() {
+        if (!AVAILABLE || update != null) {
+            return;
+        }
+        update = JfrTrace.beginUpdate();
+        if (update != null) {
+            Arrays.fill(laps, 0);
+            step = VALIDATE;
+            stepStart = System.nanoTime();
+            itemsMoved = 0;
+        }
+    }
+
+    static void step(int next) {
+        if (update != null) {
+            long now = System.nanoTime();
+            laps[step] += now - stepStart;
+            step = next;
+            stepStart = now;
+        }
+    }
+
+    static void moved(int items) {
+        if (update != null) {
+            itemsMoved += items;
+        }
+    }
+
+    static void endUpdate(Forge forge) {
+        if (update != null) {
+            step(step);
+            JfrTrace.commitUpdate(update, forge.getLocation(), laps, itemsMoved);
+            update = null;
+        }
+    }
+
+    static Object beginChestLookup() {
+        return AVAILABLE ? JfrTrace.beginChestLookup() : null;
+    }
+
+    static void endChestLookup(Object token, Location loc, String direction, boolean found) {
+        if (token != null) {
+            JfrTrace.commitChestLookup(token, loc, direction, found);
+        }
+    }
+
+    static Object beginPersistence() {
+        return AVAILABLE ? JfrTrace.beginPersistence() : null;
+    }
+
+    static void endPersistence(Object token, String operation, int forges) {
+        if (token != null) {
+            JfrTrace.commitPersistence(token, operation, forges);
+        }
+    }
+
+    /**
+     * An event executor that calls the handler method, like Bukkit's own,
+     * and records how long the handler took.
+     */
+    static EventExecutor executor(final Method method, final Class<? extends Event> eventClass) {
+        return new EventExecutor() {
+            public void execute(Listener listener, Event event) throws EventException {
+                if (!eventClass.isAssignableFrom(event.getClass())) {
+                    return;
+                }
+                Object token = JfrTrace.beginListener();
+                try {
+                    method.invoke(listener, event);
+                } catch (InvocationTargetException e) {
+                    throw new EventException(e.getCause());
+                } catch (Throwable e) {
+                    throw new EventException(e);
+                } finally {
+                    if (token != null) {
+                        JfrTrace.commitListener(token, event.getEventName(), method.getName());
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,66 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.inventory.ItemStack;
+
+
+/**
+ * The furnace internals DwarfForge needs that Bukkit has no fast API for.
+ * Bound once at enable, see Utils.bindInternals: to the server's own
+ * classes where they can be found, otherwise to plain Bukkit. Only call
+ * from the main thread; the recipes may change under other threads.
+ */
+interface FurnaceInternals {
+
+    /**
+     * Switch the furnace block between lit and unlit, keeping its contents.
+     */
+    void setBurning(Block furnace, boolean burning);
+
+    boolean canCook(Material raw);
+
+    /**
+     * @return type of what the raw material smelts into, or null if it doesn't
+     */
+    Material resultType(Material raw);
+
+    /**
+     * @return a copy of what one raw material smelts into, with its data
+     * value, or null if it doesn't smelt
+     */
+    ItemStack result(Material raw);
+
+    /**
+     * @return a raw material that smelts into the result, or null if none does
+     */
+    Material rawOf(Material result);
+
+    /**
+     * Furnace recipes were added or removed.
+     */
+    void recipesChanged();
+}
@@ -0,0 +1,127 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Lights and puts out forge furnaces. Writes that would change nothing are
+ * skipped; the rest are collected by chunk and done together at the start
+ * of the next tick, only the last one per forge. Switching a furnace
+ * between lit and unlit relights the chunk and sends the block to clients,
+ * so steady forges shouldn't do it on every update.
+ */
+class FurnaceWriter implements DwarfForge.Listener, Runnable {
+
+    // Pending writes (lit or not) by world name, chunk key and forge.
+    private static HashMap<String, HashMap<Long, LinkedHashMap<Forge, Boolean>>> pending =
+            new HashMap<String, HashMap<Long, LinkedHashMap<Forge, Boolean>>>();
+    private static boolean queued = false;
+
+    private static long written = 0;
+    private static long skipped = 0;
+
+    private static FurnaceWriter instance;
+    private DwarfForge main;
+
+    public void onEnable(DwarfForge main) {
+        this.main = main;
+        instance = this;
+    }
+
+    public void onDisable() {
+        // Don't leave forges half lit.
+        run();
+        instance = null;
+    }
+
+    static long getWritten() {
+        return written;
+    }
+
+    static long getSkipped() {
+        return skipped;
+    }
+
+    static void set(Forge forge, boolean lit) {
+        HashMap<Long, LinkedHashMap<Forge, Boolean>> chunks = pending.get(forge.getLocation().getWorld().getName());
+        Long key = Utils.chunkKey(forge.getLocation().getBlockX() >> 4, forge.getLocation().getBlockZ() >> 4);
+        LinkedHashMap<Forge, Boolean> writes = (chunks != null) ? chunks.get(key) : null;
+
+        if (!forge.furnaceNeeds(lit)) {
+            // Already right; drop anything else still pending.
+            if (writes != null) {
+                writes.remove(forge);
+            }
+            skipped += 1;
+            return;
+        }
+
+        if (instance == null) {
+            forge.writeFurnace(lit);
+            written += 1;
+            return;
+        }
+
+        if (writes == null) {
+            if (chunks == null) {
+                chunks = new HashMap<Long, LinkedHashMap<Forge, Boolean>>();
+                pending.put(forge.getLocation().getWorld().getName(), chunks);
+            }
+            writes = new LinkedHashMap<Forge, Boolean>();
+            chunks.put(key, writes);
+        }
+        writes.put(forge, lit);
+
+        if (!queued) {
+            queued = true;
+            instance.main.queueTask(instance);
+        }
+    }
+
+    // Do the pending writes, chunk by chunk.
+    public void run() {
+        queued = false;
+        for (HashMap<Long, LinkedHashMap<Forge, Boolean>> chunks : pending.values()) {
+            for (Map.Entry<Long, LinkedHashMap<Forge, Boolean>> chunk : chunks.entrySet()) {
+                for (Map.Entry<Forge, Boolean> write : chunk.getValue().entrySet()) {
+                    Forge forge = write.getKey();
+                    boolean lit = write.getValue();
+                    // Don't load chunks unloaded since; and something else
+                    // may have changed the furnace meanwhile.
+                    if (forge.isLoaded() && forge.furnaceNeeds(lit)) {
+                        forge.writeFurnace(lit);
+                        written += 1;
+                    } else {
+                        skipped += 1;
+                    }
+                }
+            }
+        }
+        pending.clear();
+    }
+}
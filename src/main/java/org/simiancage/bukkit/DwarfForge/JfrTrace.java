@@ -0,0 +1,228 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.bukkit.Location;
+
+
+/**
+ * The Flight Recorder events behind {@link ForgeTrace}. This is the only
+ * class that touches jdk.jfr, so it is only loaded on JVMs that have it.
+ */
+class JfrTrace {
+
+    @Name("org.simiancage.DwarfForge.ForgeUpdate")
+    @Label("Forge Update")
+    @Category("DwarfForge")
+    @Description("One Forge.update() pass, with the time spent in each step.")
+    @StackTrace(false)
+    static class ForgeUpdate extends Event {
+        @Label("World")
+        String world;
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Z")
+        int z;
+        @Label("Validate")
+        @Timespan
+        long validate;
+        @Label("Product")
+        @Timespan
+        long product;
+        @Label("Raw Material")
+        @Timespan
+        long rawMaterial;
+        @Label("Fuel")
+        @Timespan
+        long fuel;
+        @Label("Bulk Smelt")
+        @Timespan
+        long bulkSmelt;
+        @Label("Furnace")
+        @Timespan
+        long furnace;
+        @Label("Items Moved")
+        int itemsMoved;
+    }
+
+    @Name("org.simiancage.DwarfForge.ChestLookup")
+    @Label("Forge Chest Lookup")
+    @Category("DwarfForge")
+    @Description("Resolving a forge's input or output chest.")
+    @StackTrace(false)
+    static class ChestLookup extends Event {
+        @Label("World")
+        String world;
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Z")
+        int z;
+        @Label("Direction")
+        String direction;
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("org.simiancage.DwarfForge.Persistence")
+    @Label("Forge Persistence")
+    @Category("DwarfForge")
+    @Description("Saving or restoring the active forges.")
+    @StackTrace(false)
+    static class Persistence extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Forges")
+        int forges;
+    }
+
+    @Name("org.simiancage.DwarfForge.Listener")
+    @Label("Forge Listener")
+    @Category("DwarfForge")
+    @Description("Handling of a Bukkit event by a DwarfForge listener.")
+    @StackTrace(false)
+    static class ListenerHandling extends Event {
+        @Label("Event")
+        String event;
+        @Label("Handler")
+        String handler;
+    }
+
+    private static EventType updateType;
+    private static EventType chestType;
+    private static EventType persistenceType;
+    private static EventType listenerType;
+
+    static boolean register() {
+        if (!FlightRecorder.isAvailable()) {
+            return false;
+        }
+        updateType = EventType.getEventType(ForgeUpdate.class);
+        chestType = EventType.getEventType(ChestLookup.class);
+        persistenceType = EventType.getEventType(Persistence.class);
+        listenerType = EventType.getEventType(ListenerHandling.class);
+        return true;
+    }
+
+    static Object beginUpdate() {
+        if (!updateType.isEnabled()) {
+            return null;
+        }
+        ForgeUpdate event = new ForgeUpdate();
+        event.begin();
+        return event;
+    }
+
+    static void commitUpdate(Object token, Location loc, long[] laps, int itemsMoved) {
+        ForgeUpdate event = (ForgeUpdate) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.world = loc.getWorld().getName();
+            event.x = loc.getBlockX();
+            event.y = loc.getBlockY();
+            event.z = loc.getBlockZ();
+            event.validate = laps[ForgeTrace.VALIDATE];
+            event.product = laps[ForgeTrace.PRODUCT];
+            event.rawMaterial = laps[ForgeTrace.RAW_MATERIAL];
+            event.fuel = laps[ForgeTrace.FUEL];
+            event.bulkSmelt = laps[ForgeTrace.BULK_SMELT];
+            event.furnace = laps[ForgeTrace.FURNACE];
+            event.itemsMoved = itemsMoved;
+            event.commit();
+        }
+    }
+
+    static Object beginChestLookup() {
+        if (!chestType.isEnabled()) {
+            return null;
+        }
+        ChestLookup event = new ChestLookup();
+        event.begin();
+        return event;
+    }
+
+    static void commitChestLookup(Object token, Location loc, String direction, boolean found) {
+        ChestLookup event = (ChestLookup) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.world = loc.getWorld().getName();
+            event.x = loc.getBlockX();
+            event.y = loc.getBlockY();
+            event.z = loc.getBlockZ();
+            event.direction = direction;
+            event.found = found;
+            event.commit();
+        }
+    }
+
+    static Object beginPersistence() {
+        if (!persistenceType.isEnabled()) {
+            return null;
+        }
+        Persistence event = new Persistence();
+        event.begin();
+        return event;
+    }
+
+    static void commitPersistence(Object token, String operation, int forges) {
+        Persistence event = (Persistence) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.forges = forges;
+            event.commit();
+        }
+    }
+
+    static Object beginListener() {
+        if (!listenerType.isEnabled()) {
+            return null;
+        }
+        ListenerHandling event = new ListenerHandling();
+        event.begin();
+        return event;
+    }
+
+    static void commitListener(Object token, String eventName, String handler) {
+        ListenerHandling event = (ListenerHandling) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.event = eventName;
+            event.handler = handler;
+            event.commit();
+        }
+    }
+}
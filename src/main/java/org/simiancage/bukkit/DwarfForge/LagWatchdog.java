@@ -0,0 +1,163 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Throttles forges while the server lags. Every tick it measures how long
+ * the server tick took and how much of it went into forge updates; over
+ * each window of ticks it compares the averages to lag-tick-ms and
+ * lag-forge-ms. A lagging window doubles the slowdown, which stretches
+ * forge update intervals and shrinks the per-tick update budget in
+ * ForgeScheduler, and logs the forges that cost the most in the next
+ * window. The slowdown only halves again after several calm windows, with
+ * some margin below the thresholds, so it doesn't flap.
+ */
+class LagWatchdog implements DwarfForge.Listener, Runnable {
+
+    private static final int WINDOW = 5 * Utils.SECS;
+    private static final int MAX_LEVEL = 3;
+    private static final int CALM_WINDOWS = 3;
+    private static final double CALM_MARGIN = 0.75;
+    private static final int WORST = 5;
+
+    // Current slowdown is 1 << level.
+    private static int level = 0;
+    private static double tickMillis = 0;
+    private static double forgeMillis = 0;
+
+    private final Log log = Log.getLogger();
+    private DwarfForge main;
+    private int task = -1;
+
+    private long lastTick = 0;
+    private int ticks = 0;
+    private long tickNanos = 0;
+    private int calm = 0;
+    private boolean sampling = false;
+
+    public void onEnable(DwarfForge main) {
+        this.main = main;
+        level = 0;
+        task = main.queueRepeatingTask(1, 1, this);
+    }
+
+    public void onDisable() {
+        if (task != -1) {
+            main.cancelTask(task);
+            task = -1;
+        }
+        if (sampling) {
+            ForgeStats.stopProfile(0);
+            sampling = false;
+        }
+    }
+
+    // How many times longer than usual forges wait between updates.
+    static int getSlowdown() {
+        return 1 << level;
+    }
+
+    // Average server tick of the last window, in milliseconds.
+    static double getTickMillis() {
+        return tickMillis;
+    }
+
+    // Average time spent on forges per tick in the last window.
+    static double getForgeMillis() {
+        return forgeMillis;
+    }
+
+    public void run() {
+        long now = System.nanoTime();
+        if (lastTick != 0) {
+            tickNanos += now - lastTick;
+            ticks += 1;
+        }
+        lastTick = now;
+
+        if (ticks >= WINDOW) {
+            tickMillis = tickNanos / 1e6 / ticks;
+            forgeMillis = ForgeStats.drainTickNanos() / 1e6 / ticks;
+            ticks = 0;
+            tickNanos = 0;
+            endWindow();
+        }
+    }
+
+    private void endWindow() {
+        if (sampling) {
+            logWorst();
+        }
+
+        double tickLimit = Config.getLagTickMillis();
+        double forgeLimit = Config.getLagForgeMillis();
+        boolean lagging = (tickLimit > 0 && tickMillis > tickLimit)
+                || (forgeLimit > 0 && forgeMillis > forgeLimit);
+        boolean quiet = (tickLimit <= 0 || tickMillis < tickLimit * CALM_MARGIN)
+                && (forgeLimit <= 0 || forgeMillis < forgeLimit * CALM_MARGIN);
+
+        if (lagging) {
+            calm = 0;
+            if (level < MAX_LEVEL) {
+                level += 1;
+                log.warning(String.format("Server lagging (tick %.1f ms, forges %.2f ms/tick); "
+                        + "slowing forges down %dx.", tickMillis, forgeMillis, getSlowdown()));
+            }
+            // Find out which forges cost the most, unless an admin is
+            // already profiling.
+            if (!ForgeStats.isProfiling()) {
+                ForgeStats.startProfile();
+                sampling = true;
+            }
+        } else if (quiet && level > 0) {
+            calm += 1;
+            if (calm >= CALM_WINDOWS) {
+                calm = 0;
+                level -= 1;
+                log.info(String.format("Server recovered (tick %.1f ms, forges %.2f ms/tick); "
+                        + "forge slowdown now %dx.", tickMillis, forgeMillis, getSlowdown()));
+            }
+        } else {
+            calm = 0;
+        }
+    }
+
+    private void logWorst() {
+        sampling = false;
+        List<Map.Entry<Location, long[]>> worst = ForgeStats.stopProfile(WORST);
+        for (Map.Entry<Location, long[]> entry : worst) {
+            Location loc = entry.getKey();
+            long[] cost = entry.getValue();
+            log.warning(String.format("  Forge at %s %d,%d,%d: %.3f ms in %d updates",
+                    loc.getWorld().getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
+                    cost[0] / 1e6, cost[1]));
+        }
+    }
+}
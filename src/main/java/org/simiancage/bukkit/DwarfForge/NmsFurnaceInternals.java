@@ -0,0 +1,213 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.inventory.ItemStack;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.EnumMap;
+
+
+/**
+ * FurnaceInternals calling straight into the running server's classes,
+ * whichever versioned package they are in. The method handles are looked
+ * up once, when the class is first used, and kept in static finals so that
+ * calls through them are as fast as direct calls. If any of them can't be
+ * found, e.g. after the server renamed something, none are used.
+ */
+class NmsFurnaceInternals implements FurnaceInternals {
+
+    // net.minecraft.server.BlockFurnace.a(boolean, World, int, int, int)
+    private static final MethodHandle SET_BURNING;
+    // org.bukkit.craftbukkit.CraftWorld.getHandle()
+    private static final MethodHandle WORLD_HANDLE;
+    // net.minecraft.server.RecipesFurnace.getInstance()
+    private static final MethodHandle RECIPES;
+    // net.minecraft.server.RecipesFurnace.getResult(int)
+    private static final MethodHandle GET_RESULT;
+    // net.minecraft.server.ItemStack.id
+    private static final MethodHandle ITEM_ID;
+    // org.bukkit.craftbukkit.inventory.CraftItemStack.asBukkitCopy(ItemStack)
+    private static final MethodHandle AS_BUKKIT;
+
+    private static final String VERSION;
+    private static final Throwable FAILURE;
+
+    static {
+        // org.bukkit.craftbukkit.v1_5_R2.CraftServer -> v1_5_R2
+        String pkg = Bukkit.getServer().getClass().getPackage().getName();
+        String version = pkg.substring(pkg.lastIndexOf('.') + 1);
+        String nms = "net.minecraft.server." + version + ".";
+        String obc = "org.bukkit.craftbukkit." + version + ".";
+        if (!version.startsWith("v")) {
+            // Not versioned; the classes sit directly in the base packages.
+            version = "";
+            nms = "net.minecraft.server.";
+            obc = "org.bukkit.craftbukkit.";
+        }
+
+        MethodHandle setBurning = null;
+        MethodHandle worldHandle = null;
+        MethodHandle recipes = null;
+        MethodHandle getResult = null;
+        MethodHandle itemId = null;
+        MethodHandle asBukkit = null;
+        Throwable failure = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> world = Class.forName(nms + "World");
+            Class<?> nmsItem = Class.forName(nms + "ItemStack");
+            Class<?> recipesFurnace = Class.forName(nms + "RecipesFurnace");
+            Class<?> craftWorld = Class.forName(obc + "CraftWorld");
+
+            setBurning = lookup.findStatic(Class.forName(nms + "BlockFurnace"), "a",
+                    MethodType.methodType(void.class, boolean.class, world, int.class, int.class, int.class))
+                    .asType(MethodType.methodType(void.class, boolean.class, Object.class,
+                            int.class, int.class, int.class));
+            worldHandle = lookup.unreflect(craftWorld.getMethod("getHandle"))
+                    .asType(MethodType.methodType(Object.class, org.bukkit.World.class));
+            recipes = lookup.findStatic(recipesFurnace, "getInstance", MethodType.methodType(recipesFurnace))
+                    .asType(MethodType.methodType(Object.class));
+            getResult = lookup.findVirtual(recipesFurnace, "getResult", MethodType.methodType(nmsItem, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            itemId = lookup.findGetter(nmsItem, "id", int.class)
+                    .asType(MethodType.methodType(int.class, Object.class));
+            asBukkit = lookup.findStatic(Class.forName(obc + "inventory.CraftItemStack"), "asBukkitCopy",
+                    MethodType.methodType(ItemStack.class, nmsItem))
+                    .asType(MethodType.methodType(ItemStack.class, Object.class));
+        } catch (Throwable e) {
+            failure = e;
+        }
+
+        boolean bound = (failure == null);
+        SET_BURNING = bound ? setBurning : null;
+        WORLD_HANDLE = bound ? worldHandle : null;
+        RECIPES = bound ? recipes : null;
+        GET_RESULT = bound ? getResult : null;
+        ITEM_ID = bound ? itemId : null;
+        AS_BUKKIT = bound ? asBukkit : null;
+        VERSION = version;
+        FAILURE = failure;
+    }
+
+    /**
+     * @return the bound internals, or null if the server's classes couldn't be found
+     */
+    static FurnaceInternals bind() {
+        return (FAILURE == null) ? new NmsFurnaceInternals() : null;
+    }
+
+    // Server version the handles were looked up for, e.g. v1_5_R2.
+    static String getVersion() {
+        return VERSION;
+    }
+
+    // Why binding failed, or null.
+    static Throwable getFailure() {
+        return FAILURE;
+    }
+
+    // Raw materials by result, as the server has no lookup that way; null
+    // until needed. Never changed once built, only replaced.
+    private volatile EnumMap<Material, Material> raws = null;
+
+    private NmsFurnaceInternals() {
+    }
+
+    public void setBurning(Block furnace, boolean burning) {
+        try {
+            SET_BURNING.invokeExact(burning, (Object) WORLD_HANDLE.invokeExact(furnace.getWorld()),
+                    furnace.getX(), furnace.getY(), furnace.getZ());
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public boolean canCook(Material raw) {
+        return getResult(raw) != null;
+    }
+
+    public Material resultType(Material raw) {
+        Object item = getResult(raw);
+        if (item == null) {
+            return null;
+        }
+        try {
+            return Material.getMaterial((int) ITEM_ID.invokeExact(item));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public ItemStack result(Material raw) {
+        Object item = getResult(raw);
+        if (item == null) {
+            return null;
+        }
+        try {
+            return (ItemStack) AS_BUKKIT.invokeExact(item);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public Material rawOf(Material result) {
+        EnumMap<Material, Material> table = raws;
+        if (table == null) {
+            table = new EnumMap<Material, Material>(Material.class);
+            BukkitFurnaceInternals.readRecipes(null, table);
+            raws = table;
+        }
+        return table.get(result);
+    }
+
+    public void recipesChanged() {
+        // Results always come from the server's live recipes.
+        raws = null;
+    }
+
+    // The server's own stack, not a copy; don't keep or modify.
+    private static Object getResult(Material raw) {
+        try {
+            return (Object) GET_RESULT.invokeExact((Object) RECIPES.invokeExact(), raw.getId());
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+}
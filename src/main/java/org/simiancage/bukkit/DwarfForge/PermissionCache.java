@@ -0,0 +1,95 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.HashMap;
+
+
+/**
+ * Remembers permission decisions per player, so the block listeners don't
+ * ask the permissions plugin on every event. Decisions are dropped when the
+ * player quits or changes worlds, and otherwise expire after a short while,
+ * as Bukkit fires no event when a player's permissions change.
+ */
+class PermissionCache implements DwarfForge.Listener, Listener {
+
+    private static final long EXPIRY = 30 * 1000;
+
+    private static class Decisions {
+        final HashMap<String, Boolean> perms = new HashMap<String, Boolean>(4);
+        long expires;
+    }
+
+    private static HashMap<String, Decisions> players = new HashMap<String, Decisions>();
+
+    public void onEnable(DwarfForge main) {
+        main.registerEvents(this);
+    }
+
+    public void onDisable() {
+        players.clear();
+    }
+
+    static boolean hasPermission(Player player, String perm) {
+        long now = System.currentTimeMillis();
+        Decisions decisions = players.get(player.getName());
+        if (decisions == null) {
+            decisions = new Decisions();
+            decisions.expires = now + EXPIRY;
+            players.put(player.getName(), decisions);
+        } else if (decisions.expires < now) {
+            decisions.perms.clear();
+            decisions.expires = now + EXPIRY;
+        }
+
+        Boolean allowed = decisions.perms.get(perm);
+        if (allowed == null) {
+            allowed = player.hasPermission(perm);
+            decisions.perms.put(perm, allowed);
+        }
+        return allowed;
+    }
+
+    static void invalidate(Player player) {
+        players.remove(player.getName());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        // Permissions may be per world.
+        invalidate(event.getPlayer());
+    }
+}
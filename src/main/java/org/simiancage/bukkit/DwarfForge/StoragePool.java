@@ -0,0 +1,302 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+
+/**
+ * A forge chest together with the chests stacked on top of it, up to
+ * storage-pool-chests in all. Chests can't be chained sideways, as
+ * neighbouring chests join into a double chest (which already counts as
+ * one inventory), so the pool grows upwards.
+ *
+ * Forges use the chest next to them as before, and only turn to the rest
+ * of the pool when it runs out of input or room. For those extra chests
+ * the pool keeps an index of free slots, partly filled stacks and
+ * cookable or burnable items, so a forge doesn't open every chest to find
+ * input or room. An index entry is rebuilt when its chest changes: forges
+ * report what they take through taken(), and edits from elsewhere come in
+ * through changed(). Pools whose forge chest is gone are dropped by
+ * changed() and sweep().
+ */
+class StoragePool {
+
+    private static HashMap<Location, StoragePool> byAnchor = new HashMap<Location, StoragePool>();
+    private static HashMap<Location, ArrayList<StoragePool>> byChest =
+            new HashMap<Location, ArrayList<StoragePool>>();
+    // All pools, in the order sweep() checks them.
+    private static LinkedHashSet<StoragePool> sweepQueue = new LinkedHashSet<StoragePool>();
+
+    private static class Entry {
+        final Block chest;
+        boolean dirty = true;
+        int free;
+        boolean cookable;
+        boolean burnable;
+        final HashSet<Material> partial = new HashSet<Material>();
+        // The chest's inventory when last used, to recognise it in taken().
+        Inventory inv;
+
+        Entry(Block chest) {
+            this.chest = chest;
+        }
+    }
+
+    private final Location anchor;
+    private final ArrayList<Entry> extra = new ArrayList<Entry>();
+
+    private StoragePool(Location anchor, List<Block> chests) {
+        this.anchor = anchor;
+        for (Block chest : chests.subList(1, chests.size())) {
+            extra.add(new Entry(chest));
+        }
+    }
+
+    /**
+     * The pool around a forge chest.
+     * @param chest - the chest next to the forge. Can be null.
+     * @return the pool, or null if the chest has no other chests to pool with
+     */
+    static StoragePool of(Block chest) {
+        if (chest == null || Config.getStoragePoolChests() <= 1) {
+            return null;
+        }
+
+        Location loc = chest.getLocation();
+        List<Block> chests = chain(chest);
+        StoragePool pool = byAnchor.get(loc);
+        if (pool != null && !pool.matches(chests)) {
+            forget(pool);
+            pool = null;
+        }
+        if (pool == null && chests.size() > 1) {
+            pool = new StoragePool(loc, chests);
+            byAnchor.put(loc, pool);
+            sweepQueue.add(pool);
+            for (Entry entry : pool.extra) {
+                Location at = entry.chest.getLocation();
+                ArrayList<StoragePool> pools = byChest.get(at);
+                if (pools == null) {
+                    pools = new ArrayList<StoragePool>(1);
+                    byChest.put(at, pools);
+                }
+                pools.add(pool);
+            }
+        }
+        return pool;
+    }
+
+    // The chest and the chests stacked on top of it, within the limit.
+    private static List<Block> chain(Block chest) {
+        ArrayList<Block> chests = new ArrayList<Block>();
+        Block block = chest;
+        while (chests.size() < Config.getStoragePoolChests() && Utils.isBlockOfType(block, Material.CHEST)) {
+            chests.add(block);
+            block = block.getRelative(BlockFace.UP);
+        }
+        return chests;
+    }
+
+    private boolean matches(List<Block> chests) {
+        if (chests.size() != extra.size() + 1) {
+            return false;
+        }
+        for (int i = 0; i < extra.size(); ++i) {
+            if (!extra.get(i).chest.equals(chests.get(i + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void forget(StoragePool pool) {
+        byAnchor.remove(pool.anchor);
+        sweepQueue.remove(pool);
+        for (Entry entry : pool.extra) {
+            Location at = entry.chest.getLocation();
+            ArrayList<StoragePool> pools = byChest.get(at);
+            if (pools != null) {
+                pools.remove(pool);
+                if (pools.isEmpty()) {
+                    byChest.remove(at);
+                }
+            }
+        }
+    }
+
+    /**
+     * A chest changed outside of DwarfForge's control: mark it for
+     * reindexing in every pool it belongs to.
+     * @return the forge chests of those pools
+     */
+    static List<Location> changed(Block chest) {
+        if (byChest.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ArrayList<StoragePool> pools = byChest.get(chest.getLocation());
+        if (pools == null) {
+            return Collections.emptyList();
+        }
+        ArrayList<Location> anchors = new ArrayList<Location>(pools.size());
+        // Copy: forgetting a pool changes the list.
+        for (StoragePool pool : new ArrayList<StoragePool>(pools)) {
+            if (!Utils.isBlockOfType(pool.anchor.getBlock(), Material.CHEST)) {
+                forget(pool);
+                continue;
+            }
+            for (Entry entry : pool.extra) {
+                if (entry.chest.equals(chest)) {
+                    entry.dirty = true;
+                }
+            }
+            anchors.add(pool.anchor);
+        }
+        return anchors;
+    }
+
+    /**
+     * Drop the pools whose forge chest is gone, checking up to budget pools
+     * in turn; pools in unloaded chunks are skipped. Chests broken by
+     * explosions or other plugins fire no event, so the integrity sweep
+     * calls this every tick.
+     */
+    static void sweep(int budget) {
+        budget = Math.min(budget, sweepQueue.size());
+        for (int i = 0; i < budget; ++i) {
+            Iterator<StoragePool> it = sweepQueue.iterator();
+            StoragePool pool = it.next();
+            it.remove();
+            Location loc = pool.anchor;
+            if (loc.getWorld().isChunkLoaded(loc.getBlockX() >> 4, loc.getBlockZ() >> 4)
+                    && !Utils.isBlockOfType(loc.getBlock(), Material.CHEST)) {
+                forget(pool);
+            } else {
+                sweepQueue.add(pool);
+            }
+        }
+    }
+
+    private static Inventory refresh(Entry entry) {
+        Inventory inv = Forge.getInventory(entry.chest);
+        entry.inv = inv;
+        if (inv == null) {
+            entry.dirty = true;
+            return null;
+        }
+        if (entry.dirty) {
+            entry.free = 0;
+            entry.cookable = false;
+            entry.burnable = false;
+            entry.partial.clear();
+            for (ItemStack item : inv.getContents()) {
+                if (item == null || item.getType() == Material.AIR) {
+                    entry.free += 1;
+                    continue;
+                }
+                entry.cookable |= Utils.canCook(item.getType());
+                entry.burnable |= Utils.canBurn(item.getType());
+                if (item.getAmount() < item.getMaxStackSize()) {
+                    entry.partial.add(item.getType());
+                }
+            }
+            entry.dirty = false;
+        }
+        return inv;
+    }
+
+    /**
+     * Inventories of the extra chests holding something cookable (or
+     * burnable). Report any inventory the caller takes from to taken().
+     */
+    List<Inventory> withInput(boolean fuel) {
+        ArrayList<Inventory> found = new ArrayList<Inventory>(extra.size());
+        for (Entry entry : extra) {
+            Inventory inv = refresh(entry);
+            if (inv != null && (fuel ? entry.burnable : entry.cookable)) {
+                found.add(inv);
+            }
+        }
+        return found;
+    }
+
+    // Items were taken from an inventory handed out by withInput(); it is
+    // reindexed on its next use.
+    void taken(Inventory inv) {
+        for (Entry entry : extra) {
+            if (inv.equals(entry.inv)) {
+                entry.dirty = true;
+            }
+        }
+    }
+
+    // Room for the item in the extra chests.
+    int roomFor(ItemStack item) {
+        int room = 0;
+        for (Entry entry : extra) {
+            Inventory inv = refresh(entry);
+            if (inv != null && (entry.free > 0 || entry.partial.contains(item.getType()))) {
+                room += Utils.roomFor(inv, item);
+            }
+        }
+        return room;
+    }
+
+    /**
+     * Add the item to the extra chests, in order.
+     * @return anything that did not fit, or null
+     */
+    ItemStack add(ItemStack item) {
+        for (Entry entry : extra) {
+            Inventory inv = refresh(entry);
+            if (inv == null || (entry.free == 0 && !entry.partial.contains(item.getType()))) {
+                continue;
+            }
+            int amount = item.getAmount();
+            HashMap<Integer, ItemStack> remains = inv.addItem(item);
+            if (remains.isEmpty()) {
+                entry.dirty = true;
+                return null;
+            }
+            item = remains.get(0);
+            if (item.getAmount() < amount) {
+                entry.dirty = true;
+            }
+        }
+        return item;
+    }
+}
@@ -0,0 +1,423 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Works out a forge's transfers off the main thread. The main thread takes
+ * compact snapshots of the furnace and chest contents, a worker decides
+ * which raw material and fuel to load and how much product fits, and the
+ * main thread applies that plan later. A plan whose forge or slots changed
+ * in between is stale; it is thrown away and the forge updated directly.
+ */
+class TransferPlanner implements DwarfForge.Listener {
+
+    private static ExecutorService pool = null;
+
+    public void onEnable(DwarfForge main) {
+        int threads = Config.getPlannerThreads();
+        if (threads > 0) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DwarfForge planner");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public void onDisable() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    static boolean isEnabled() {
+        return pool != null;
+    }
+
+    /**
+     * Compact copy of some inventory slots: item type ids, data and amounts.
+     * Empty slots have type 0.
+     */
+    static final class Stacks {
+        final int[] type;
+        final short[] data;
+        final int[] amount;
+        // Which slots hold something that smelts; see findCookable().
+        boolean[] cookable;
+
+        Stacks(int size) {
+            type = new int[size];
+            data = new short[size];
+            amount = new int[size];
+        }
+
+        static Stacks of(Inventory inv) {
+            Stacks stacks = new Stacks(inv.getSize());
+            for (int slot = 0; slot < inv.getSize(); ++slot) {
+                stacks.set(slot, inv.getItem(slot));
+            }
+            return stacks;
+        }
+
+        void set(int slot, ItemStack item) {
+            if (item != null && item.getType() != Material.AIR) {
+                type[slot] = item.getTypeId();
+                data[slot] = item.getDurability();
+                amount[slot] = item.getAmount();
+            }
+        }
+
+        // Look up which slots smelt. Only on the main thread: this reads the
+        // server's recipes, which reloading the config changes.
+        void findCookable() {
+            cookable = new boolean[type.length];
+            for (int slot = 0; slot < type.length; ++slot) {
+                cookable[slot] = type[slot] != 0 && Utils.canCook(Material.getMaterial(type[slot]));
+            }
+        }
+
+        boolean matches(int slot, ItemStack item) {
+            if (item == null || item.getType() == Material.AIR) {
+                return type[slot] == 0;
+            }
+            return type[slot] == item.getTypeId() && data[slot] == item.getDurability()
+                    && amount[slot] == item.getAmount();
+        }
+
+        int first(int wanted) {
+            for (int slot = 0; slot < type.length; ++slot) {
+                if (type[slot] == wanted) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        // Room for the item in the slots from start, every step slots.
+        int roomFor(int itemType, short itemData, int start, int step) {
+            int max = Math.min(64, Material.getMaterial(itemType).getMaxStackSize());
+            int room = 0;
+            for (int slot = start; slot < type.length; slot += step) {
+                if (type[slot] == 0) {
+                    room += max;
+                } else if (type[slot] == itemType && data[slot] == itemData) {
+                    room += Math.max(0, max - amount[slot]);
+                }
+            }
+            return room;
+        }
+    }
+
+    private static final class Snapshot {
+        Forge forge;
+        int version;
+        boolean requireFuel;
+        Block inputChest;
+        Block outputChest;
+        Stacks furnace;
+        Stacks input;
+        Stacks output;
+        // Raw material type id for the current product, or -1.
+        int wantRaw = -1;
+        // Raw and fuel slots of the other members of the forge's cluster,
+        // two slots per forge.
+        Stacks siblings;
+    }
+
+    private static final class Plan {
+        int productRoom = 0;
+        boolean rawOk = true;
+        int rawSlot = -1;
+        int rawAmount = 0;
+        boolean steal = false;
+        boolean fuelOk = true;
+        int fuelSlot = -1;
+        int fuelAmount = 0;
+    }
+
+    /**
+     * Snapshot the forge and hand it to a worker; the plan is applied on
+     * the main thread later. Does nothing if a plan is already under way.
+     */
+    static void plan(Forge forge) {
+        if (forge.isPlanning()) {
+            return;
+        }
+
+        Inventory blockInv = forge.getFurnaceInventory();
+        if (blockInv == null) {
+            return;
+        }
+
+        final Snapshot snap = new Snapshot();
+        snap.forge = forge;
+        snap.version = forge.getVersion();
+        snap.requireFuel = Config.isRequireFuel();
+        snap.inputChest = forge.getInputChest();
+        snap.outputChest = forge.getOutputChest();
+
+        snap.furnace = new Stacks(3);
+        for (int slot = 0; slot < 3; ++slot) {
+            snap.furnace.set(slot, blockInv.getItem(slot));
+        }
+        snap.furnace.findCookable();
+
+        Inventory input = Forge.getInventory(snap.inputChest);
+        Inventory output = Forge.getInventory(snap.outputChest);
+        snap.input = (input != null) ? Stacks.of(input) : null;
+        snap.output = (output != null) ? Stacks.of(output) : null;
+        if (snap.input != null) {
+            snap.input.findCookable();
+        }
+
+        ItemStack product = blockInv.getItem(Forge.PRODUCT_SLOT);
+        if (product != null && product.getType() != Material.AIR) {
+            Material want = Utils.getRawProduct(product.getType());
+            if (want != null) {
+                snap.wantRaw = want.getId();
+            }
+        }
+
+        ArrayList<Inventory> siblings = new ArrayList<Inventory>();
+        ForgeCluster cluster = forge.joinCluster(snap.inputChest);
+        if (cluster != null) {
+            for (Forge member : cluster.getMembers()) {
+                if (member != forge && !member.isUnloaded()) {
+                    Inventory memberInv = member.getFurnaceInventory();
+                    if (memberInv != null) {
+                        siblings.add(memberInv);
+                    }
+                }
+            }
+        }
+        snap.siblings = new Stacks(2 * siblings.size());
+        for (int i = 0; i < siblings.size(); ++i) {
+            snap.siblings.set(2 * i, siblings.get(i).getItem(Forge.RAW_SLOT));
+            snap.siblings.set(2 * i + 1, siblings.get(i).getItem(Forge.FUEL_SLOT));
+        }
+
+        final DwarfForge main = DwarfForge.main;
+        forge.setPlanning(true);
+        pool.execute(new Runnable() {
+            public void run() {
+                Plan computed;
+                try {
+                    computed = compute(snap);
+                } catch (Throwable e) {
+                    // Let the main thread update the forge itself.
+                    computed = null;
+                }
+                final Plan plan = computed;
+                main.queueTask(new Runnable() {
+                    public void run() {
+                        apply(snap, plan);
+                    }
+                });
+            }
+        });
+    }
+
+    // Runs on a worker: decide what to move, without touching the world.
+    private static Plan compute(Snapshot snap) {
+        Plan plan = new Plan();
+        Stacks furnace = snap.furnace;
+        int product = Forge.PRODUCT_SLOT;
+        int raw = Forge.RAW_SLOT;
+        int fuel = Forge.FUEL_SLOT;
+
+        // How much of the product fits into its chest.
+        if (furnace.type[product] != 0) {
+            Stacks dest = (snap.requireFuel && furnace.type[product] == Material.COAL.getId())
+                    ? snap.input : snap.output;
+            if (dest != null) {
+                plan.productRoom = dest.roomFor(furnace.type[product], furnace.data[product], 0, 1);
+            }
+        }
+
+        // Which raw material to load, and how much of it.
+        if (furnace.type[raw] != 0) {
+            plan.rawOk = furnace.cookable[raw];
+        } else if (snap.input == null) {
+            plan.rawOk = false;
+        } else {
+            int slot = (snap.wantRaw >= 0) ? snap.input.first(snap.wantRaw) : -1;
+            for (int i = 0; slot < 0 && i < snap.input.type.length; ++i) {
+                if (snap.input.cookable[i]) {
+                    slot = i;
+                }
+            }
+            if (slot < 0) {
+                plan.steal = true;
+            } else {
+                plan.rawSlot = slot;
+                plan.rawAmount = share(snap, slot, raw);
+            }
+        }
+
+        // Which fuel to load, and how much of it.
+        if (snap.requireFuel && furnace.type[fuel] == 0) {
+            plan.fuelOk = false;
+            for (int slot = 0; snap.input != null && slot < snap.input.type.length; ++slot) {
+                if (snap.input.type[slot] != 0 && Utils.canBurn(Material.getMaterial(snap.input.type[slot]))) {
+                    plan.fuelOk = true;
+                    plan.fuelSlot = slot;
+                    plan.fuelAmount = share(snap, slot, fuel);
+                    break;
+                }
+            }
+        }
+
+        return plan;
+    }
+
+    // Same split as ForgeCluster.share, from the snapshot.
+    private static int share(Snapshot snap, int chestSlot, int furnaceSlot) {
+        int itemType = snap.input.type[chestSlot];
+        short itemData = snap.input.data[chestSlot];
+        int room = snap.furnace.roomFor(itemType, itemData, furnaceSlot, 3);
+        int siblingRoom = snap.siblings.roomFor(itemType, itemData, (furnaceSlot == Forge.RAW_SLOT) ? 0 : 1, 2);
+        return Utils.share(snap.input.amount[chestSlot], room, room + siblingRoom);
+    }
+
+    // Runs on the main thread: apply the plan, unless it is stale, then
+    // schedule the forge's next update from the result. While the plan was
+    // under way, the forge was only scheduled to check back.
+    private static void apply(Snapshot snap, Plan plan) {
+        Forge forge = snap.forge;
+        forge.setPlanning(false);
+        if (!forge.isActive() || forge.isUnloaded() || !forge.isValid()) {
+            // The forge's next update sorts it out.
+            return;
+        }
+
+        Inventory blockInv = forge.getFurnaceInventory();
+        Inventory input = Forge.getInventory(snap.inputChest);
+        if (plan == null || forge.getVersion() != snap.version || isStale(snap, plan, blockInv, input)) {
+            forge.updateFurnace();
+        } else {
+            applyPlan(snap, plan, forge, blockInv, input);
+        }
+        DwarfForge.main.getForgeScheduler().reschedule(forge);
+    }
+
+    private static void applyPlan(Snapshot snap, Plan plan, Forge forge, Inventory blockInv, Inventory input) {
+        boolean ok = true;
+
+        forge.setBlockedOn(null);
+        ItemStack product = blockInv.getItem(Forge.PRODUCT_SLOT);
+        if (product != null && product.getType() != Material.AIR) {
+            Block dest = (snap.requireFuel && product.getType() == Material.COAL)
+                    ? snap.inputChest : snap.outputChest;
+            if (plan.productRoom > 0 || StoragePool.of(dest) != null) {
+                // The snapshot only covers the chest next to the forge; its
+                // storage pool may still have room.
+                ok = forge.moveProduct(blockInv, product, dest);
+            } else {
+                // Nothing fits; don't even try, and park until it does.
+                forge.setBlockedOn(dest);
+                ok = Forge.rawMatchesProduct(blockInv, product);
+            }
+        }
+
+        if (ok || !snap.requireFuel) {
+            forge.setStarved(false);
+            if (plan.rawSlot >= 0) {
+                ok = load(forge, input, plan.rawSlot, plan.rawAmount, blockInv, Forge.RAW_SLOT);
+                if (ok) {
+                    forge.rawLoaded();
+                }
+            } else if (plan.steal) {
+                boolean loaded = forge.loadRawFromPool(snap.inputChest, forge.getCluster(), blockInv)
+                        || forge.stealRawMaterial(forge.getCluster(), blockInv);
+                forge.setStarved(!loaded);
+                if (loaded) {
+                    forge.rawLoaded();
+                }
+                ok = loaded && ok;
+            } else {
+                ok = plan.rawOk && ok;
+            }
+        }
+
+        if (ok && snap.requireFuel) {
+            if (plan.fuelSlot >= 0) {
+                ok = load(forge, input, plan.fuelSlot, plan.fuelAmount, blockInv, Forge.FUEL_SLOT);
+            } else if (!plan.fuelOk && StoragePool.of(snap.inputChest) != null) {
+                // No fuel in the input chest; look through its storage pool.
+                ok = forge.updateFuel();
+            } else {
+                ok = plan.fuelOk;
+            }
+        }
+
+        forge.finishFurnaceUpdate(ok);
+    }
+
+    private static boolean isStale(Snapshot snap, Plan plan, Inventory blockInv, Inventory input) {
+        if (blockInv == null) {
+            return true;
+        }
+        for (int slot = 0; slot < 3; ++slot) {
+            if (!snap.furnace.matches(slot, blockInv.getItem(slot))) {
+                return true;
+            }
+        }
+        if (plan.rawSlot >= 0 || plan.fuelSlot >= 0) {
+            if (input == null || input.getSize() != snap.input.type.length) {
+                return true;
+            }
+            if (plan.rawSlot >= 0 && !snap.input.matches(plan.rawSlot, input.getItem(plan.rawSlot))) {
+                return true;
+            }
+            if (plan.fuelSlot >= 0 && !snap.input.matches(plan.fuelSlot, input.getItem(plan.fuelSlot))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean load(Forge forge, Inventory input, int chestSlot, int amount, Inventory blockInv, int furnaceSlot) {
+        if (amount <= 0) {
+            return false;
+        }
+        Utils.moveFromSlot(input, chestSlot, amount, blockInv, furnaceSlot);
+        ForgeTrace.moved(amount);
+        ForgeEvents.moved(forge, amount);
+        return true;
+    }
+}
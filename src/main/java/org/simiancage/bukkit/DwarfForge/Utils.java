@@ -23,24 +23,35 @@
 package org.simiancage.bukkit.DwarfForge;
 
 
-import java.util.Iterator;
-
-import net.minecraft.server.v1_5_R2.ItemStack;
-import net.minecraft.server.v1_5_R2.RecipesFurnace;
-
-import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.craftbukkit.v1_5_R2.inventory.CraftItemStack;
-import org.bukkit.inventory.FurnaceRecipe;
-import org.bukkit.inventory.Recipe;
+import org.bukkit.inventory.Inventory;
 
 class Utils {
 
     static final short SECS = 20;           // 20 server ticks
     static final short MINS = 60 * SECS;
 
+    private static FurnaceInternals internals = new BukkitFurnaceInternals();
+
+    // Bind to the running server's furnace internals, or fall back to Bukkit.
+    static void bindInternals(Log log) {
+        FurnaceInternals nms = NmsFurnaceInternals.bind();
+        if (nms != null) {
+            internals = nms;
+            log.debug("Using server internals", NmsFurnaceInternals.getVersion());
+        } else {
+            internals = new BukkitFurnaceInternals();
+            log.warning("Server internals not found (" + NmsFurnaceInternals.getFailure()
+                    + "); using the slower Bukkit API instead.");
+        }
+    }
+
+    static FurnaceInternals internals() {
+        return internals;
+    }
+
     // Logs are usually considered a typical fuel, but the Dwarfs were not
     // stupid. Cook logs into charcoal, a much more efficient fuel.
     static private boolean isTypicalFuel(Material m) {
@@ -70,33 +81,93 @@ class Utils {
         }
     }
 
+    // Burn time of a fuel item, in ticks, as in vanilla TileEntityFurnace.
+    static int burnTicks(Material m) {
+        switch (m) {
+            case COAL:
+                return 1600;
+            case LAVA_BUCKET:
+                return 20000;
+            case BLAZE_ROD:
+                return 2400;
+            case SAPLING:
+            case STICK:
+                return 100;
+            case WOOD:
+            case FENCE:
+            case WOOD_STAIRS:
+            case TRAP_DOOR:
+            case CHEST:
+            case LOCKED_CHEST:
+                return 300;
+            default:
+                return 0;
+        }
+    }
+
+    // How many items one piece of fuel smelts in a vanilla furnace.
+    static double smeltsPerFuel(Material m) {
+        return burnTicks(m) / 200.0;
+    }
+
     static Material resultOfCooking(Material mat) {
-        ItemStack item = RecipesFurnace.getInstance().getResult(mat.getId());
-        return (item != null)
-                /*                ? new CraftItemStack(item).getType() */
-                ? CraftItemStack.asCraftMirror(item).getType()
-                        : null;
+        return internals.resultType(mat);
     }
 
-    static Material getRawProduct(Material result) {
-        if (result == null) {
-            return null;
-        }
-        Iterator<Recipe> iter = Bukkit.recipeIterator();
-        while(iter.hasNext()) {
-            Recipe rec = iter.next();
-            if (!(rec instanceof FurnaceRecipe)) {
-                continue;
-            }
-            if (rec.getResult().getType() == result) {
-                return ((FurnaceRecipe)rec).getInput().getType();
+    // Unlike resultOfCooking, this keeps the data value (e.g. charcoal vs coal).
+    static org.bukkit.inventory.ItemStack resultStackOfCooking(Material mat) {
+        return internals.result(mat);
+    }
+
+    // How many more of the given item fit into the inventory.
+    static int roomFor(Inventory inv, org.bukkit.inventory.ItemStack item) {
+        int max = Math.min(item.getMaxStackSize(), inv.getMaxStackSize());
+        int room = 0;
+        for (org.bukkit.inventory.ItemStack slot : inv.getContents()) {
+            if (slot == null || slot.getType() == Material.AIR) {
+                room += max;
+            } else if (slot.isSimilar(item)) {
+                room += Math.max(0, max - slot.getAmount());
             }
         }
-        return null;
+        return room;
+    }
+
+    /**
+     * Move amount items from one inventory slot into another, empty, slot.
+     * A whole stack is moved as is, without copying it.
+     */
+    static void moveFromSlot(Inventory from, int slot, int amount, Inventory to, int toSlot) {
+        org.bukkit.inventory.ItemStack item = from.getItem(slot);
+        if (item.getAmount() <= amount) {
+            from.clear(slot);
+            to.setItem(toSlot, item);
+        } else {
+            org.bukkit.inventory.ItemStack moved = item.clone();
+            moved.setAmount(amount);
+            item.setAmount(item.getAmount() - amount);
+            from.setItem(slot, item);
+            to.setItem(toSlot, moved);
+        }
+    }
+
+    // Take amount items out of the given slot.
+    static void takeFromSlot(Inventory inv, int slot, int amount) {
+        org.bukkit.inventory.ItemStack item = inv.getItem(slot);
+        if (item.getAmount() <= amount) {
+            inv.clear(slot);
+        } else {
+            item.setAmount(item.getAmount() - amount);
+            inv.setItem(slot, item);
+        }
+    }
+
+    static Material getRawProduct(Material result) {
+        return (result != null) ? internals.rawOf(result) : null;
     }
 
     static boolean canCook(Material m) {
-        return resultOfCooking(m) != null;
+        return internals.canCook(m);
     }
 
     static boolean canBurn(Material m) {
@@ -124,9 +195,35 @@ class Utils {
         return nextCardinalFace(dir).getOppositeFace();
     }
 
+    // Split available items by room: our part of the total room, rounded up.
+    static int share(int available, int room, int totalRoom) {
+        if (room <= 0 || totalRoom <= 0) {
+            return 0;
+        }
+        long part = ((long) available * room + totalRoom - 1) / totalRoom;
+        return (int) Math.min(part, Math.min(available, room));
+    }
+
+    // Pack chunk coordinates into a single map key.
+    static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    // Fixed arity versions for the common cases; varargs allocate an array
+    // on every call.
+    static boolean isBlockOfType(Block block, Material type) {
+        return block.getType() == type;
+    }
+
+    static boolean isBlockOfType(Block block, Material type1, Material type2) {
+        Material type = block.getType();
+        return type == type1 || type == type2;
+    }
+
     static boolean isBlockOfType(Block block, Material... types) {
+        Material blockType = block.getType();
         for (Material type : types) {
-            if (block.getType() == type) {
+            if (blockType == type) {
                 return true;
             }
         }
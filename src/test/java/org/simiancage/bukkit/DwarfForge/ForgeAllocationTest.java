@@ -0,0 +1,267 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * Bytes allocated per call on the forge update path, against a stub world,
+ * measured with the thread allocation counters. Each test fails once its
+ * operation allocates more than its budget, so that allocation, once cut,
+ * stays down.
+ *
+ * The budgets include what the stub world's proxies allocate per call.
+ * Run with -Dforge.alloc.print=true to print the measured bytes, and
+ * record them again when the code gets leaner.
+ */
+public class ForgeAllocationTest {
+
+    // Bytes per call: what the test measured on JDK 17 (64-bit, compressed
+    // oops), in brackets, plus a small margin for other JVMs and settings.
+    private static final long BUDGET_CAN_COOK = 0;                  // (0)
+    private static final long BUDGET_FIND = 160;                    // (120)
+    private static final long BUDGET_UPDATE_PRODUCT = 64;           // (24)
+    private static final long BUDGET_UPDATE_RAW_MATERIAL = 64;      // (24)
+    private static final long BUDGET_LOAD_RAW_MATERIAL = 640;       // (536)
+    private static final long BUDGET_LOAD_RAW_FOR_PRODUCT = 640;    // (536)
+    private static final long BUDGET_UPDATE_FUEL = 64;              // (24)
+    private static final long BUDGET_LOAD_FUEL = 608;               // (512)
+    private static final long BUDGET_UPDATE = 600;                  // (496)
+
+    private static final int WARMUP = 20000;
+    private static final int RUNS = 10000;
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    private StubWorld stub;
+    private Block furnace;
+    private Forge forge;
+    private Inventory furnaceInv;
+    private Inventory inputInv;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // Default settings, without a plugin to load them.
+        Method defaults = Config.class.getDeclaredMethod("setupCustomDefaultVariables");
+        defaults.setAccessible(true);
+        defaults.invoke(Config.getInstance());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new StubWorld("alloc");
+        furnace = stub.buildForge(8, 2, 8);
+        forge = new Forge(furnace.getLocation());
+        furnaceInv = forge.getFurnaceInventory();
+        inputInv = Forge.getInventory(forge.getInputChest());
+        assertNotNull(furnaceInv);
+        assertNotNull(inputInv);
+        setRequireFuel(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        setRequireFuel(false);
+    }
+
+    private static void setRequireFuel(boolean requireFuel) throws Exception {
+        Field field = Config.class.getDeclaredField("requireFuel");
+        field.setAccessible(true);
+        field.setBoolean(null, requireFuel);
+    }
+
+    /**
+     * Run the operation until compiled, then measure it.
+     * @return bytes allocated per run
+     */
+    private static long allocatedPerRun(Runnable operation) {
+        for (int i = 0; i < WARMUP; ++i) {
+            operation.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < RUNS; ++i) {
+            operation.run();
+        }
+        long after = threads.getThreadAllocatedBytes(thread);
+        return (after - before) / RUNS;
+    }
+
+    private static void assertWithinBudget(String name, long budget, Runnable operation) {
+        long bytes = allocatedPerRun(operation);
+        if (Boolean.getBoolean("forge.alloc.print")) {
+            System.out.println(name + ": " + bytes + " bytes per call (budget " + budget + ")");
+        }
+        assertTrue(name + " allocates " + bytes + " bytes per call, over its budget of " + budget,
+                bytes <= budget);
+    }
+
+    @Test
+    public void canCook() {
+        assertTrue(Utils.canCook(Material.IRON_ORE));
+        assertWithinBudget("canCook", BUDGET_CAN_COOK, new Runnable() {
+            public void run() {
+                Utils.canCook(Material.IRON_ORE);
+                Utils.canCook(Material.DIRT);
+            }
+        });
+    }
+
+    @Test
+    public void find() {
+        final Location loc = furnace.getLocation();
+        Forge found = Forge.find(loc);
+        assertNotNull(found);
+        assertSame(found, Forge.find(loc));
+        assertWithinBudget("find", BUDGET_FIND, new Runnable() {
+            public void run() {
+                Forge.find(loc);
+            }
+        });
+    }
+
+    @Test
+    public void updateProduct() {
+        // Nothing to move: the usual case between smelts.
+        assertTrue(forge.updateProduct(furnaceInv));
+        assertWithinBudget("updateProduct", BUDGET_UPDATE_PRODUCT, new Runnable() {
+            public void run() {
+                forge.updateProduct(furnaceInv);
+            }
+        });
+    }
+
+    @Test
+    public void updateRawMaterial() {
+        // Raw material already loaded.
+        furnaceInv.setItem(Forge.RAW_SLOT, new ItemStack(Material.IRON_ORE, 16));
+        assertTrue(forge.updateRawMaterial(furnaceInv));
+        assertWithinBudget("updateRawMaterial", BUDGET_UPDATE_RAW_MATERIAL, new Runnable() {
+            public void run() {
+                forge.updateRawMaterial(furnaceInv);
+            }
+        });
+    }
+
+    @Test
+    public void loadRawMaterial() {
+        // Load a whole stack from the input chest, then put it back.
+        final ItemStack ore = new ItemStack(Material.IRON_ORE, 16);
+        inputInv.setItem(0, ore);
+        assertTrue(forge.updateRawMaterial(furnaceInv));
+        assertSame(ore, furnaceInv.getItem(Forge.RAW_SLOT));
+        assertWithinBudget("loadRawMaterial", BUDGET_LOAD_RAW_MATERIAL, new Runnable() {
+            public void run() {
+                furnaceInv.clear(Forge.RAW_SLOT);
+                inputInv.setItem(0, ore);
+                forge.updateRawMaterial(furnaceInv);
+            }
+        });
+    }
+
+    @Test
+    public void loadRawMaterialForProduct() {
+        // With a product in the furnace, its raw material goes first.
+        final ItemStack sand = new ItemStack(Material.SAND, 16);
+        final ItemStack ore = new ItemStack(Material.IRON_ORE, 16);
+        furnaceInv.setItem(Forge.PRODUCT_SLOT, new ItemStack(Material.IRON_INGOT, 8));
+        inputInv.setItem(0, sand);
+        inputInv.setItem(1, ore);
+        assertTrue(forge.updateRawMaterial(furnaceInv));
+        assertSame(ore, furnaceInv.getItem(Forge.RAW_SLOT));
+        assertWithinBudget("loadRawMaterialForProduct", BUDGET_LOAD_RAW_FOR_PRODUCT, new Runnable() {
+            public void run() {
+                furnaceInv.clear(Forge.RAW_SLOT);
+                inputInv.setItem(1, ore);
+                forge.updateRawMaterial(furnaceInv);
+            }
+        });
+    }
+
+    @Test
+    public void updateFuel() throws Exception {
+        setRequireFuel(true);
+        furnaceInv.setItem(Forge.FUEL_SLOT, new ItemStack(Material.COAL, 16));
+        assertTrue(forge.updateFuel(furnaceInv));
+        assertWithinBudget("updateFuel", BUDGET_UPDATE_FUEL, new Runnable() {
+            public void run() {
+                forge.updateFuel(furnaceInv);
+            }
+        });
+    }
+
+    @Test
+    public void loadFuel() throws Exception {
+        setRequireFuel(true);
+        final ItemStack coal = new ItemStack(Material.COAL, 16);
+        inputInv.setItem(0, coal);
+        assertTrue(forge.updateFuel(furnaceInv));
+        assertSame(coal, furnaceInv.getItem(Forge.FUEL_SLOT));
+        assertWithinBudget("loadFuel", BUDGET_LOAD_FUEL, new Runnable() {
+            public void run() {
+                furnaceInv.clear(Forge.FUEL_SLOT);
+                inputInv.setItem(0, coal);
+                forge.updateFuel(furnaceInv);
+            }
+        });
+    }
+
+    @Test
+    public void update() {
+        // A lit forge with work to do and nothing to move: steady state.
+        furnaceInv.setItem(Forge.RAW_SLOT, new ItemStack(Material.IRON_ORE, 16));
+        forge.update();
+        assertEquals(Material.BURNING_FURNACE, furnace.getType());
+        assertWithinBudget("update", BUDGET_UPDATE, new Runnable() {
+            public void run() {
+                forge.update();
+            }
+        });
+    }
+}
@@ -0,0 +1,414 @@
+/*
+    Copyright (C) 2011 by Matthew D Moss
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+ */
+
+package org.simiancage.bukkit.DwarfForge;
+
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.Chest;
+import org.bukkit.block.Furnace;
+import org.bukkit.inventory.FurnaceInventory;
+import org.bukkit.inventory.FurnaceRecipe;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.Recipe;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+
+/**
+ * A small in-memory world for tests: a SIZE^3 box of blocks, furnaces and
+ * chests with working inventories, and a server that knows a few furnace
+ * recipes. The Bukkit interfaces are implemented with dynamic proxies;
+ * methods the tests don't need throw UnsupportedOperationException.
+ *
+ * Blocks are created once and handed out again, as the server does, so
+ * lookups don't allocate beyond the proxy call itself.
+ */
+class StubWorld {
+
+    static final int SIZE = 32;
+
+    private static final ClassLoader LOADER = StubWorld.class.getClassLoader();
+
+    final World world;
+    private final String name;
+    private final StubBlock[] blocks = new StubBlock[SIZE * SIZE * SIZE];
+
+    StubWorld(String name) {
+        installServer();
+        this.name = name;
+        world = (World) Proxy.newProxyInstance(LOADER, new Class<?>[] {World.class}, new WorldHandler());
+        for (int x = 0; x < SIZE; ++x) {
+            for (int y = 0; y < SIZE; ++y) {
+                for (int z = 0; z < SIZE; ++z) {
+                    blocks[index(x, y, z)] = new StubBlock(x, y, z);
+                }
+            }
+        }
+    }
+
+    Block blockAt(int x, int y, int z) {
+        return blocks[index(x, y, z)].proxy;
+    }
+
+    void set(Block block, Material type, int data) {
+        StubBlock stub = blocks[index(block.getX(), block.getY(), block.getZ())];
+        stub.type = type;
+        stub.data = (byte) data;
+    }
+
+    /**
+     * Build a forge: a furnace facing east on lava, with a chest on each
+     * side.
+     * @return the furnace
+     */
+    Block buildForge(int x, int y, int z) {
+        Block furnace = blockAt(x, y, z);
+        set(furnace.getRelative(BlockFace.DOWN), Material.STATIONARY_LAVA, 0);
+        // Data 5: facing east.
+        set(furnace, Material.FURNACE, 5);
+        set(furnace.getRelative(Utils.nextCardinalFace(BlockFace.EAST)), Material.CHEST, 0);
+        set(furnace.getRelative(Utils.prevCardinalFace(BlockFace.EAST)), Material.CHEST, 0);
+        return furnace;
+    }
+
+    private static int index(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= SIZE || y >= SIZE || z >= SIZE) {
+            throw new IndexOutOfBoundsException("Outside the stub world: " + x + "," + y + "," + z);
+        }
+        return (x * SIZE + y) * SIZE + z;
+    }
+
+    private static Object unsupported(Method method) {
+        throw new UnsupportedOperationException("Not stubbed: " + method);
+    }
+
+    // Identity equality for proxies, which the maps keyed on Locations need.
+    private static Object objectMethod(Object proxy, Method method, Object[] args, String description) {
+        String name = method.getName();
+        if (name.equals("equals")) {
+            return proxy == args[0];
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return description;
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        return method.getDeclaringClass() == Object.class;
+    }
+
+    private class WorldHandler implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (isObjectMethod(method)) {
+                return objectMethod(proxy, method, args, "StubWorld " + name);
+            }
+            String m = method.getName();
+            if (m.equals("getName")) {
+                return name;
+            } else if (m.equals("getBlockAt") && args.length == 3) {
+                return blockAt((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+            } else if (m.equals("getBlockAt") && args.length == 1) {
+                Location loc = (Location) args[0];
+                return blockAt(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+            } else if (m.equals("isChunkLoaded") && args.length == 2) {
+                return true;
+            } else if (m.equals("getMaxHeight")) {
+                return SIZE;
+            } else if (m.equals("dropItemNaturally")) {
+                return null;
+            }
+            return unsupported(method);
+        }
+    }
+
+    private class StubBlock implements InvocationHandler {
+        final int x;
+        final int y;
+        final int z;
+        final Block proxy;
+        Material type = Material.AIR;
+        byte data = 0;
+
+        // Tile entity data, for furnaces and chests.
+        final ItemStack[] furnaceSlots = new ItemStack[3];
+        final ItemStack[] chestSlots = new ItemStack[27];
+        short burnTime = 0;
+        short cookTime = 0;
+
+        StubBlock(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            proxy = (Block) Proxy.newProxyInstance(LOADER, new Class<?>[] {Block.class}, this);
+        }
+
+        public Object invoke(Object self, Method method, Object[] args) {
+            if (isObjectMethod(method)) {
+                return objectMethod(self, method, args, "StubBlock " + type + " at " + x + "," + y + "," + z);
+            }
+            String m = method.getName();
+            if (m.equals("getType")) {
+                return type;
+            } else if (m.equals("getTypeId")) {
+                return type.getId();
+            } else if (m.equals("getData")) {
+                return data;
+            } else if (m.equals("getX")) {
+                return x;
+            } else if (m.equals("getY")) {
+                return y;
+            } else if (m.equals("getZ")) {
+                return z;
+            } else if (m.equals("getWorld")) {
+                return world;
+            } else if (m.equals("getLocation") && args == null) {
+                return new Location(world, x, y, z);
+            } else if (m.equals("getRelative") && args.length == 1) {
+                BlockFace face = (BlockFace) args[0];
+                return blockAt(x + face.getModX(), y + face.getModY(), z + face.getModZ());
+            } else if (m.equals("getRelative") && args.length == 2) {
+                BlockFace face = (BlockFace) args[0];
+                int distance = (Integer) args[1];
+                return blockAt(x + distance * face.getModX(), y + distance * face.getModY(),
+                        z + distance * face.getModZ());
+            } else if (m.equals("getRelative") && args.length == 3) {
+                return blockAt(x + (Integer) args[0], y + (Integer) args[1], z + (Integer) args[2]);
+            } else if (m.equals("getState")) {
+                return state();
+            } else if (m.equals("setType")) {
+                type = (Material) args[0];
+                return null;
+            } else if (m.equals("setTypeId")) {
+                type = Material.getMaterial((Integer) args[0]);
+                return true;
+            } else if (m.equals("setTypeIdAndData")) {
+                type = Material.getMaterial((Integer) args[0]);
+                data = (Byte) args[1];
+                return true;
+            } else if (m.equals("setData")) {
+                data = (Byte) args[0];
+                return null;
+            }
+            return unsupported(method);
+        }
+
+        // A new state on every call, as on the server.
+        private Object state() {
+            if (type == Material.FURNACE || type == Material.BURNING_FURNACE) {
+                return Proxy.newProxyInstance(LOADER, new Class<?>[] {Furnace.class}, new StateHandler(this));
+            } else if (type == Material.CHEST) {
+                return Proxy.newProxyInstance(LOADER, new Class<?>[] {Chest.class}, new StateHandler(this));
+            }
+            return null;
+        }
+    }
+
+    private class StateHandler implements InvocationHandler {
+        private final StubBlock block;
+
+        StateHandler(StubBlock block) {
+            this.block = block;
+        }
+
+        public Object invoke(Object self, Method method, Object[] args) {
+            if (isObjectMethod(method)) {
+                return objectMethod(self, method, args, "StubState at " + block.x + "," + block.y + "," + block.z);
+            }
+            String m = method.getName();
+            if (m.equals("getInventory")) {
+                boolean furnace = (block.type != Material.CHEST);
+                return Proxy.newProxyInstance(LOADER,
+                        new Class<?>[] {furnace ? FurnaceInventory.class : Inventory.class},
+                        new InventoryHandler(furnace ? block.furnaceSlots : block.chestSlots, self));
+            } else if (m.equals("getBurnTime")) {
+                return block.burnTime;
+            } else if (m.equals("setBurnTime")) {
+                block.burnTime = (Short) args[0];
+                return null;
+            } else if (m.equals("getCookTime")) {
+                return block.cookTime;
+            } else if (m.equals("setCookTime")) {
+                block.cookTime = (Short) args[0];
+                return null;
+            } else if (m.equals("update")) {
+                return true;
+            } else if (m.equals("getBlock")) {
+                return block.proxy;
+            } else if (m.equals("getType")) {
+                return block.type;
+            } else if (m.equals("getLocation") && args == null) {
+                return new Location(world, block.x, block.y, block.z);
+            }
+            return unsupported(method);
+        }
+    }
+
+    private static class InventoryHandler implements InvocationHandler {
+        private final ItemStack[] slots;
+        private final Object holder;
+
+        InventoryHandler(ItemStack[] slots, Object holder) {
+            this.slots = slots;
+            this.holder = holder;
+        }
+
+        public Object invoke(Object self, Method method, Object[] args) {
+            if (isObjectMethod(method)) {
+                return objectMethod(self, method, args, "StubInventory");
+            }
+            String m = method.getName();
+            if (m.equals("getSize")) {
+                return slots.length;
+            } else if (m.equals("getMaxStackSize")) {
+                return 64;
+            } else if (m.equals("getItem")) {
+                return slots[(Integer) args[0]];
+            } else if (m.equals("setItem")) {
+                slots[(Integer) args[0]] = (ItemStack) args[1];
+                return null;
+            } else if (m.equals("clear") && args == null) {
+                for (int i = 0; i < slots.length; ++i) {
+                    slots[i] = null;
+                }
+                return null;
+            } else if (m.equals("clear")) {
+                slots[(Integer) args[0]] = null;
+                return null;
+            } else if (m.equals("getContents")) {
+                return slots.clone();
+            } else if (m.equals("setContents")) {
+                ItemStack[] contents = (ItemStack[]) args[0];
+                for (int i = 0; i < slots.length; ++i) {
+                    slots[i] = (i < contents.length) ? contents[i] : null;
+                }
+                return null;
+            } else if (m.equals("first") && args[0] instanceof Material) {
+                for (int i = 0; i < slots.length; ++i) {
+                    if (slots[i] != null && slots[i].getType() == args[0]) {
+                        return i;
+                    }
+                }
+                return -1;
+            } else if (m.equals("addItem")) {
+                return addItem((ItemStack[]) args[0]);
+            } else if (m.equals("getHolder")) {
+                return holder;
+            }
+            return unsupported(method);
+        }
+
+        private HashMap<Integer, ItemStack> addItem(ItemStack[] items) {
+            HashMap<Integer, ItemStack> left = new HashMap<Integer, ItemStack>();
+            for (int i = 0; i < items.length; ++i) {
+                ItemStack item = items[i].clone();
+                int amount = item.getAmount();
+                int max = Math.min(64, item.getMaxStackSize());
+                for (int slot = 0; slot < slots.length && amount > 0; ++slot) {
+                    if (slots[slot] != null && slots[slot].isSimilar(item)) {
+                        int moved = Math.min(amount, max - slots[slot].getAmount());
+                        if (moved > 0) {
+                            slots[slot].setAmount(slots[slot].getAmount() + moved);
+                            amount -= moved;
+                        }
+                    }
+                }
+                for (int slot = 0; slot < slots.length && amount > 0; ++slot) {
+                    if (slots[slot] == null) {
+                        ItemStack stack = item.clone();
+                        stack.setAmount(Math.min(amount, max));
+                        slots[slot] = stack;
+                        amount -= stack.getAmount();
+                    }
+                }
+                if (amount > 0) {
+                    item.setAmount(amount);
+                    left.put(i, item);
+                }
+            }
+            return left;
+        }
+    }
+
+    // The Bukkit server can only be set once per JVM.
+    private static synchronized void installServer() {
+        if (Bukkit.getServer() != null) {
+            return;
+        }
+
+        final ArrayList<Recipe> recipes = new ArrayList<Recipe>();
+        final ItemFactory factory = (ItemFactory) Proxy.newProxyInstance(LOADER,
+                new Class<?>[] {ItemFactory.class}, new InvocationHandler() {
+                    public Object invoke(Object self, Method method, Object[] args) {
+                        if (isObjectMethod(method)) {
+                            return objectMethod(self, method, args, "StubItemFactory");
+                        }
+                        if (method.getName().equals("equals")) {
+                            // Stub items carry no meta.
+                            return args[0] == args[1] || (args[0] != null && args[0].equals(args[1]));
+                        }
+                        return unsupported(method);
+                    }
+                });
+
+        Server server = (Server) Proxy.newProxyInstance(LOADER, new Class<?>[] {Server.class},
+                new InvocationHandler() {
+                    public Object invoke(Object self, Method method, Object[] args) {
+                        if (isObjectMethod(method)) {
+                            return objectMethod(self, method, args, "StubServer");
+                        }
+                        String m = method.getName();
+                        if (m.equals("getName") || m.equals("getVersion") || m.equals("getBukkitVersion")) {
+                            return "stub";
+                        } else if (m.equals("getLogger")) {
+                            return Logger.getLogger("StubServer");
+                        } else if (m.equals("recipeIterator")) {
+                            return new ArrayList<Recipe>(recipes).iterator();
+                        } else if (m.equals("getItemFactory")) {
+                            return factory;
+                        }
+                        return unsupported(method);
+                    }
+                });
+        Bukkit.setServer(server);
+
+        // Only now: copying the result stacks asks the server's item factory.
+        recipes.add(new FurnaceRecipe(new ItemStack(Material.IRON_INGOT), Material.IRON_ORE));
+        recipes.add(new FurnaceRecipe(new ItemStack(Material.STONE), Material.COBBLESTONE));
+        recipes.add(new FurnaceRecipe(new ItemStack(Material.GLASS), Material.SAND));
+        // Charcoal.
+        recipes.add(new FurnaceRecipe(new ItemStack(Material.COAL, 1, (short) 1), Material.LOG));
+    }
+}